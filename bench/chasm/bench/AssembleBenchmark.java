@@ -0,0 +1,29 @@
+package chasm.bench;
+
+import chasm.compiler.Assembler;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** CASM to bytecode, on the listings the compiler generates. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AssembleBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int lines;
+    
+    private String casm;
+    
+    @Setup
+    public void setup() {
+        casm = Programs.casm(Programs.source(lines));
+    }
+    
+    @Benchmark
+    public byte[] assemble() {
+        return new Assembler(casm).assemble();
+    }
+}
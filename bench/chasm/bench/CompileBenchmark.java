@@ -0,0 +1,59 @@
+package chasm.bench;
+
+import chasm.compiler.CompileResult;
+import chasm.compiler.ThreadedCompiler;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** ChASM to instructions, from scratch and after a one line edit. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompileBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int lines;
+    
+    private String source;
+    private String edited;
+    private ThreadedCompiler compiler;
+    private boolean flip = false;
+    
+    @Setup
+    public void setup() {
+        source = Programs.source(lines);
+        
+        // the same program with its last statement changed
+        int last = source.lastIndexOf("x = x + 1");
+        edited = source.substring(0, last) + "x = x + 2" + source.substring(last + 9);
+        
+        compiler = new ThreadedCompiler();
+        compiler.setReporting(false);
+        compiler.compileOnCallingThread(source);
+    }
+    
+    @Benchmark
+    public CompileResult compile() {
+        ThreadedCompiler fresh = new ThreadedCompiler();
+        fresh.setReporting(false);
+        
+        return fresh.compileOnCallingThread(source);
+    }
+    
+    /** Recompile as the editor does while typing, reusing the unchanged statements. */
+    @Benchmark
+    public CompileResult recompile() {
+        flip = !flip;
+        return compiler.compileOnCallingThread(flip ? edited : source);
+    }
+    
+    @Benchmark
+    public byte[] compileAndEncode() {
+        ThreadedCompiler fresh = new ThreadedCompiler();
+        fresh.setReporting(false);
+        
+        return fresh.compileOnCallingThread(source).toByteCode();
+    }
+}
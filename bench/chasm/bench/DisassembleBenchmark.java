@@ -0,0 +1,36 @@
+package chasm.bench;
+
+import chasm.compiler.Disassembler;
+import chasm.instructions.InstructionList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Decoding .casm files, as done when one is opened in the editor. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DisassembleBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int lines;
+    
+    private byte[] byteCode;
+    
+    @Setup
+    public void setup() {
+        byteCode = Programs.byteCode(Programs.source(lines));
+    }
+    
+    @Benchmark
+    public InstructionList read() {
+        return Disassembler.read(byteCode, Disassembler.HEADER_SIZE);
+    }
+    
+    /** Decoding followed by the listing shown in the editor. */
+    @Benchmark
+    public String readAndList() {
+        return Disassembler.read(byteCode, Disassembler.HEADER_SIZE).toString();
+    }
+}
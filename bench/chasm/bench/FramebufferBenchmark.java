@@ -0,0 +1,46 @@
+package chasm.bench;
+
+import chasm.vm.Framebuffer;
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Drawing a frame and bringing the display image up to date, as a 60 fps program would. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FramebufferBenchmark {
+    private Framebuffer framebuffer;
+    private int frame = 0;
+    
+    @Setup
+    public void setup() {
+        framebuffer = new Framebuffer();
+        framebuffer.update();
+    }
+    
+    /** A moving sprite of 16 lines and a line of text, then the image update. */
+    @Benchmark
+    public Rectangle sprite() {
+        int x = frame++ & 0x7F, y = 64 + (frame & 0x3F);
+        
+        for(int i = 0; i < 16; i++)
+            framebuffer.line(x, y + i, x + 48, y + 15 - i, i * 16);
+        
+        for(int i = 0; i < 16; i++)
+            framebuffer.character(x + i * 8, y + 24, (char) ('A' + i));
+        
+        framebuffer.frame();
+        return framebuffer.update();
+    }
+    
+    /** The whole screen changing, the worst case for the image update. */
+    @Benchmark
+    public Rectangle fullScreen() {
+        framebuffer.clear();
+        return framebuffer.update();
+    }
+}
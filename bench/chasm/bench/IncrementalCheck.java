@@ -0,0 +1,60 @@
+package chasm.bench;
+
+import chasm.compiler.ThreadedCompiler;
+import java.util.Arrays;
+
+/**
+ * Checks that recompiling an edited program on the same compiler, which reuses the
+ * unchanged statements of the compilation before, gives the same bytecode as compiling
+ * it on a fresh one.
+ * <p>
+ * Every case compiles a program, then an edited version of it. Exits with status 1 if
+ * any edited version compiles differently.
+ * <p>
+ * Usage: {@code ant incremental}, or {@code java chasm.bench.IncrementalCheck}
+ */
+public class IncrementalCheck {
+    public static void main(String[] args) {
+        String source = Programs.source(200);
+        boolean passed = true;
+        
+        // QENBSNID and UGHSKMPO have the same String.hashCode
+        passed &= check("swapped colliding names",
+                "var QENBSNID = 1\nvar UGHSKMPO = 2\nQENBSNID = 7\n",
+                "var UGHSKMPO = 2\nvar QENBSNID = 1\nQENBSNID = 7\n");
+        passed &= check("swapped names",
+                "var a = 1\nvar b = 2\na = 7\n",
+                "var b = 2\nvar a = 1\na = 7\n");
+        passed &= check("reused slot",
+                "var r = 0\nvar b\nr = b\n",
+                "var r = 0\nif(r == 0) { var a = 7 }\nvar b\nr = b\n");
+        passed &= check("added label",
+                "var x = 0\nwhile(x < 3) { x = x + 1 }\nx = 1\n",
+                "var x = 0\nif(x == 0) { x = 2 }\nwhile(x < 3) { x = x + 1 }\nx = 1\n");
+        passed &= check("edited line", source, source.replaceFirst("x = 0\n", "x = 5\n"));
+        passed &= check("removed line", source, source.replaceFirst("y = 0\n", ""));
+        
+        System.exit(passed ? 0 : 1);
+    }
+    
+    private static boolean check(String name, String before, String after) {
+        ThreadedCompiler compiler = compiler();
+        compiler.compileOnCallingThread(before);
+        
+        byte[] incremental = compiler.compileOnCallingThread(after).toByteCode();
+        byte[] fresh = compiler().compileOnCallingThread(after).toByteCode();
+        
+        boolean ok = fresh != null && Arrays.equals(incremental, fresh);
+        
+        System.out.println(String.format("%-24s %s", name, ok ? "ok" : "FAIL"));
+        
+        return ok;
+    }
+    
+    private static ThreadedCompiler compiler() {
+        ThreadedCompiler compiler = new ThreadedCompiler();
+        compiler.setReporting(false);
+        
+        return compiler;
+    }
+}
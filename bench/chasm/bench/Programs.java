@@ -0,0 +1,124 @@
+package chasm.bench;
+
+import chasm.compiler.ThreadedCompiler;
+
+/**
+ * Synthetic programs for the benchmarks, built from a block of typical statements
+ * repeated until the program has the requested number of lines.
+ */
+public class Programs {
+    // ten lines, using every kind of statement the compiler knows
+    private static final String[] BLOCK = {
+        "x = x + 1 // step",
+        "if(x > 200) {",
+        "    x = 0",
+        "}",
+        "while(y < 3) {",
+        "    y = y + 1",
+        "}",
+        "y = 0",
+        "casm { MOV(r0, #1) }",
+        "z = x * 2 + y"
+    };
+    
+    /** @return ChASM source code with the given number of lines */
+    public static String source(int lines) {
+        StringBuilder sb = new StringBuilder(lines * 16);
+        sb.append("var x = 0, y = 0, z\n");
+        
+        for(int i = 1; i < lines; i++)
+            sb.append(BLOCK[(i - 1) % BLOCK.length]).append('\n');
+        
+        // close a block cut off by the line count
+        int open = 0;
+        for(int i = 0; i < (lines - 1) % BLOCK.length; i++) {
+            if(BLOCK[i].endsWith("{"))
+                open++;
+            else if(BLOCK[i].equals("}"))
+                open--;
+        }
+        
+        while(open-- > 0)
+            sb.append("}\n");
+        
+        return sb.toString();
+    }
+    
+    /**
+     * @param lines roughly how many lines the program has
+     * @param depth how deep the while and if blocks are nested
+     * @return ChASM source made of nests of alternating while and if blocks
+     */
+    public static String nested(int lines, int depth) {
+        StringBuilder sb = new StringBuilder(lines * 24);
+        sb.append("var x = 0, y = 0\n");
+        
+        // each nest takes three lines per level
+        for(int nests = Math.max(lines / (depth * 3), 1); nests > 0; nests--) {
+            for(int level = 0; level < depth; level++) {
+                indent(sb, level).append(level % 2 == 0 ? "while(x < 3) {\n" : "if(y == 1) {\n");
+                indent(sb, level + 1).append("x = x + 1\n");
+            }
+            
+            for(int level = depth - 1; level >= 0; level--)
+                indent(sb, level).append("}\n");
+        }
+        
+        return sb.toString();
+    }
+    
+    /** @return ChASM source with a single casm block of the given number of instructions */
+    public static String casmBlock(int lines) {
+        StringBuilder sb = new StringBuilder(lines * 24).append("casm {\n");
+        
+        for(int i = 0; i < lines; i++)
+            sb.append("    ADD(r").append(i % 8).append(", r1, r2)\n");
+        
+        return sb.append("}\n").toString();
+    }
+    
+    /** @return CASM code with a label and a jump to it every other line */
+    public static String labels(int lines) {
+        StringBuilder sb = new StringBuilder(lines * 12);
+        
+        for(int i = 0; i < lines / 2; i++) {
+            sb.append("LBL(l").append(i % 256).append(")\n");
+            sb.append("JMP(l").append(i % 256).append(")\n");
+        }
+        
+        return sb.toString();
+    }
+    
+    private static StringBuilder indent(StringBuilder sb, int level) {
+        for(int i = 0; i < level; i++)
+            sb.append("    ");
+        
+        return sb;
+    }
+    
+    /** @return the CASM listing the compiler generates for the source */
+    public static String casm(String source) {
+        StringBuilder listing = new StringBuilder(source.length() * 4);
+        
+        ThreadedCompiler compiler = new ThreadedCompiler();
+        compiler.setReporting(false);
+        compiler.setListing(listing);
+        
+        if(compiler.compileOnCallingThread(source).getDiagnostics().hasErrors())
+            throw new IllegalStateException("Benchmark program does not compile");
+        
+        return listing.toString();
+    }
+    
+    /** @return the bytecode the compiler generates for the source */
+    public static byte[] byteCode(String source) {
+        ThreadedCompiler compiler = new ThreadedCompiler();
+        compiler.setReporting(false);
+        
+        byte[] byteCode = compiler.compileOnCallingThread(source).toByteCode();
+        if(byteCode == null)
+            throw new IllegalStateException("Benchmark program does not compile");
+        
+        return byteCode;
+    }
+}
@@ -0,0 +1,150 @@
+package chasm.bench;
+
+import chasm.compiler.Assembler;
+import chasm.compiler.Disassembler;
+import chasm.compiler.ThreadedCompiler;
+import java.util.ArrayList;
+import java.util.function.IntFunction;
+
+/**
+ * Checks that compiling, assembling and importing scale linearly with the size of the
+ * program, so quadratic code is caught before a user opens a large file.
+ * <p>
+ * Every case is timed at doubling sizes, and the growth exponent k of time ~ size^k is
+ * fitted over the timings. Exits with status 1 if any exponent is above {@link #LIMIT}.
+ * <p>
+ * Usage: {@code ant scaling}, or {@code java chasm.bench.ScalingCheck [smallest size] [doublings]}
+ */
+public class ScalingCheck {
+    /** Highest growth exponent accepted. Linear code measures about 1, quadratic about 2. */
+    public static final double LIMIT = 1.2;
+    
+    private static final int RUNS = 5; // the fastest run of each size is kept
+    
+    public static void main(String[] args) throws InterruptedException {
+        int smallest = args.length > 0 ? Integer.parseInt(args[0]) : 16000;
+        int doublings = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        
+        ArrayList<Case> cases = new ArrayList();
+        
+        cases.add(new Case("compile statements", n -> {
+            String source = Programs.source(n);
+            return () -> compile(source);
+        }));
+        cases.add(new Case("compile nested blocks", n -> {
+            String source = Programs.nested(n, 32);
+            return () -> compile(source);
+        }));
+        cases.add(new Case("compile casm block", n -> {
+            String source = Programs.casmBlock(n);
+            return () -> compile(source);
+        }));
+        cases.add(new Case("assemble listing", n -> {
+            String casm = Programs.casm(Programs.source(n));
+            return () -> new Assembler(casm).assemble();
+        }));
+        cases.add(new Case("assemble labels", n -> {
+            String casm = Programs.labels(n);
+            return () -> new Assembler(casm).assemble();
+        }));
+        cases.add(new Case("import", n -> {
+            byte[] byteCode = Programs.byteCode(Programs.source(n));
+            return () -> Disassembler.toSource(Disassembler.read(byteCode, Disassembler.HEADER_SIZE));
+        }));
+        
+        boolean[] passed = { true };
+        
+        // deeply nested programs recurse deeply in the compiler
+        Thread thread = new Thread(null, () -> {
+            for(Case c : cases)
+                passed[0] &= c.check(smallest, doublings);
+        }, "ChASM-Scaling", 512L * 1024 * 1024);
+        
+        thread.start();
+        thread.join();
+        
+        System.exit(passed[0] ? 0 : 1);
+    }
+    
+    private static Object compile(String source) {
+        ThreadedCompiler compiler = new ThreadedCompiler();
+        compiler.setReporting(false);
+        
+        return compiler.compileOnCallingThread(source);
+    }
+    
+    /** Something to time at a given size. */
+    private static class Case {
+        final String name;
+        final IntFunction<Task> setup; // builds the input, outside of the timing
+        
+        Case(String name, IntFunction<Task> setup) {
+            this.name = name;
+            this.setup = setup;
+        }
+        
+        boolean check(int smallest, int doublings) {
+            // warm up on the largest size, so the JIT has compiled the hot paths
+            time(setup.apply(smallest << doublings));
+            
+            double[] x = new double[doublings + 1];
+            double[] y = new double[doublings + 1];
+            StringBuilder times = new StringBuilder();
+            
+            for(int i = 0; i <= doublings; i++) {
+                int size = smallest << i;
+                long nanos = time(setup.apply(size));
+                
+                x[i] = Math.log(size);
+                y[i] = Math.log(nanos);
+                times.append(String.format(" %d:%.1fms", size, nanos / 1e6));
+            }
+            
+            double exponent = slope(x, y);
+            boolean ok = exponent <= LIMIT;
+            
+            System.out.println(String.format("%-24s k = %.2f %s%s", name, exponent, ok ? "ok  " : "FAIL", times));
+            
+            return ok;
+        }
+    }
+    
+    private interface Task {
+        Object run();
+    }
+    
+    private static Object sink; // keeps the results alive so no work is optimized away
+    
+    // the fastest of a few runs, the others are disturbed by GC or the JIT
+    private static long time(Task task) {
+        long best = Long.MAX_VALUE;
+        System.gc(); // garbage of the previous size is not charged to this one
+        
+        for(int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            sink = task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        
+        return best;
+    }
+    
+    // least squares slope of y over x
+    private static double slope(double[] x, double[] y) {
+        double mx = 0, my = 0;
+        
+        for(int i = 0; i < x.length; i++) {
+            mx += x[i] / x.length;
+            my += y[i] / y.length;
+        }
+        
+        double sxy = 0, sxx = 0;
+        
+        for(int i = 0; i < x.length; i++) {
+            sxy += (x[i] - mx) * (y[i] - my);
+            sxx += (x[i] - mx) * (x[i] - mx);
+        }
+        
+        return sxy / sxx;
+    }
+}
@@ -0,0 +1,61 @@
+package chasm.bench;
+
+import chasm.vm.Snapshot;
+import chasm.vm.VirtualMachine;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Taking and restoring VM snapshots, as a debugger stepping back through a run would. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SnapshotBenchmark {
+    // a loop writing a few bytes of memory and drawing a pixel
+    private static final String DRAW =
+            "var x = 0, y = 0\n"
+            + "while(1 == 1) {\n"
+            + "    x = x + 1\n"
+            + "    if(x == 0){\n"
+            + "        y = y + 1\n"
+            + "    }\n"
+            + "    casm {\n"
+            + "        VTR(v0, r0) VTR(v1, r1) MOV(r2, #255) PXL(r0, r1, r2)\n"
+            + "        RTM(r0, #4096) RTM(r1, #4097)\n"
+            + "    }\n"
+            + "}\n";
+    
+    // checkpoints kept, so snapshots share pages like they would in a debugger
+    private final Snapshot[] checkpoints = new Snapshot[4096];
+    private int next = 0;
+    
+    private VirtualMachine vm;
+    
+    @Setup
+    public void setup() {
+        vm = new VirtualMachine(Programs.byteCode(DRAW));
+        
+        for(int i = 0; i < checkpoints.length; i++) {
+            vm.run(1000);
+            checkpoints[i] = vm.snapshot();
+        }
+    }
+    
+    /** A thousand instructions, then a snapshot. */
+    @Benchmark
+    public Snapshot checkpoint() {
+        vm.run(1000);
+        
+        Snapshot snapshot = vm.snapshot();
+        checkpoints[next++ & (checkpoints.length - 1)] = snapshot;
+        return snapshot;
+    }
+    
+    /** Going back to an earlier checkpoint. */
+    @Benchmark
+    public void restore() {
+        vm.restore(checkpoints[(next += 1237) & (checkpoints.length - 1)]);
+    }
+}
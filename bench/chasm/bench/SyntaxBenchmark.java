@@ -0,0 +1,38 @@
+package chasm.bench;
+
+import chasm.SyntaxScanner;
+import chasm.compiler.ThreadedCompiler;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Finding the highlighted spans, done by the editor after every change. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SyntaxBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int lines;
+    
+    private String source;
+    private ArrayList<String> keywords;
+    
+    @Setup
+    public void setup() {
+        source = Programs.source(lines);
+        keywords = new ThreadedCompiler().keywords;
+    }
+    
+    @Benchmark
+    public void scan(Blackhole bh) {
+        // caret on the brace of the first if, so brackets are matched too
+        SyntaxScanner.scan(source, source.indexOf('{'), keywords, (kind, start, length) -> {
+            bh.consume(kind);
+            bh.consume(start + length);
+        });
+    }
+}
@@ -0,0 +1,54 @@
+package chasm.bench;
+
+import chasm.vm.VirtualMachine;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Running compiled programs on the VM, in instructions per microsecond. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VirtualMachineBenchmark {
+    // three nested while loops, about 280 million instructions in all
+    private static final String LOOPS =
+            "var i = 0, j = 0, k = 0, s = 0\n"
+            + "while(i < 250) {\n"
+            + "    j = 0\n"
+            + "    while(j < 250) {\n"
+            + "        k = 0\n"
+            + "        while(k < 250) {\n"
+            + "            s = s + k\n"
+            + "            k = k + 1\n"
+            + "        }\n"
+            + "        j = j + 1\n"
+            + "    }\n"
+            + "    i = i + 1\n"
+            + "}\n";
+    
+    private static final long SLICE = 1_000_000;
+    
+    /** Whether hot loops are translated to JVM classes. */
+    @Param({"false", "true"})
+    public boolean jit;
+    
+    private VirtualMachine vm;
+    
+    @Setup
+    public void setup() {
+        vm = new VirtualMachine(Programs.byteCode(LOOPS));
+        vm.setJitEnabled(jit);
+    }
+    
+    /** A slice of a million instructions, restarting the program when it halts. */
+    @Benchmark
+    @OperationsPerInvocation(1_000_000)
+    public long loops() {
+        if(vm.isHalted())
+            vm.reset();
+        
+        return vm.run(SLICE);
+    }
+}
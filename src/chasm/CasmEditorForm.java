@@ -1,7 +1,7 @@
 package chasm;
 
-import static chasm.ChASM.INSTRUCTIONS_MAP;
-import static chasm.MathUtils.bytesToShort;
+import chasm.compiler.BuildCache;
+import chasm.compiler.Disassembler;
 import chasm.compiler.ThreadedCompiler;
 import chasm.instructions.*;
 import java.awt.*;
@@ -9,6 +9,7 @@ import java.awt.event.*;
 import java.io.*;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 import javax.swing.*;
 import javax.swing.text.*;
@@ -26,7 +27,7 @@ public class CasmEditorForm extends javax.swing.JFrame {
         codeHintsTimer = new javax.swing.Timer(500, (java.awt.event.ActionEvent e) -> {
             errArea.setText("");
             
-            if(!compiler.compiling())
+            if(!exporting) // a newer compilation would cancel the export
                 compiler.compile(editor.getText());
         });
         
@@ -113,150 +114,29 @@ public class CasmEditorForm extends javax.swing.JFrame {
 
         // clear styles
         doc.setCharacterAttributes(0, doc.getLength(), defaultStyle, true);
-
-        String text = editor.getText().toUpperCase();
-        
-        // color syntax words
-        String curName = "";
-        for(int pos = 0; pos < text.length(); pos++) {
-            char c = text.charAt(pos);
-
-            if(c >= 'A' && c <= 'Z') {
-                curName += c;
-            } else {
-                if(compiler.keywords.contains(curName))
-                    doc.setCharacterAttributes(pos - curName.length(), curName.length(), keywordStyle, true);
-
-                curName = "";
-            }
-        }
         
-        // bracket matching
-        OUTER:
-        if(text.length() > 0) {
-            int caret = editor.getCaretPosition();
+        SyntaxScanner.scan(editor.getText(), editor.getCaretPosition(), compiler.keywords, (kind, start, length) -> {
+            Style style;
             
-            char c = 0;
-            char cprime = 0; // c` - corresponding character
-            boolean direction = false; // true = back, false = forward
-            
-            for(int i = 0; i < 2; i++) {
-                if(caret >= text.length()) {
-                    caret = text.length() - 1;
-                    continue;
-                }
-                
-                if(caret < 0)
-                    break OUTER;
-                
-                c = text.charAt(caret);
-                
-                switch(c) {
-                    case '(':
-                        cprime = ')';
-                        direction = false;
-                        break;
-                    case ')':
-                        cprime = '(';
-                        direction = true;
-                        break;
-                    case '{':
-                        cprime = '}';
-                        direction = false;
-                        break;
-                    case '}':
-                        cprime = '{';
-                        direction = true;
-                        break;
-                    default:
-                        caret--;
-                }
+            switch(kind) {
+                case KEYWORD:
+                    style = keywordStyle;
+                    break;
+                case BRACKET:
+                    style = highlightStyle;
+                    break;
+                case UNMATCHED_BRACKET:
+                    style = errorStyle;
+                    break;
+                case COMMENT:
+                    style = commentStyle;
+                    break;
+                default:
+                    style = defaultStyle;
             }
             
-            if(cprime == 0)
-                break OUTER;
-
-            int count = 1;
-
-            int primeIndex = -1;
-
-            // Go back or forward
-            if(direction) {
-                // Scan backwards
-                for(int i = caret - 1; i >= 0; i--)  {
-                    char x = text.charAt(i);
-                    if(x == c)
-                        count++ ;
-                    else if(x == cprime) {
-                        if(--count == 0) {
-                            primeIndex = i;
-                            break;
-                        }
-                    }
-                }
-            } else {
-                // Scan forwards
-                for(int i = 0; i < text.length() - (caret + 1); i++) {
-                    char x = text.charAt(caret + 1 + i);
-
-                    if(x == c)
-                        count++ ;
-                    else if(x == cprime) {
-                        if(--count == 0) {
-                            primeIndex = i + caret + 1;
-                            break;
-                        }
-                    }
-                }
-            }
-            
-            if(primeIndex == -1) {
-                ((StyledDocument) editor.getDocument()).setCharacterAttributes(caret, 1, errorStyle, true);
-            } else {
-                ((StyledDocument) editor.getDocument()).setCharacterAttributes(caret, 1, highlightStyle, true);
-                ((StyledDocument) editor.getDocument()).setCharacterAttributes(primeIndex, 1, highlightStyle, true);
-            }
-        }
-        
-        int casmStart;
-        curName = "";
-        for(int i = 0; i < text.length(); i++) {
-            char c = text.charAt(i);
-            
-            // get cur token name
-            if(c >= 'A' && c <= 'Z')
-                curName += c;
-            else { // end of cur token
-                if(curName.equals("CASM")) {
-                    while(i++ < text.length() - 2 && text.charAt(i) == ' ') {}
-                    
-                    if(text.length() > i && text.charAt(i++) == '{') { // begin CASM block
-                        casmStart = i + 1;
-                        
-                        while(i++ < text.length() - 1 && text.charAt(i) != '}') {}
-                        
-                        ((StyledDocument) editor.getDocument()).setCharacterAttributes(casmStart - 1, i - casmStart + 1, defaultStyle, true);
-                    }
-                }
-                
-                curName = "";
-            }
-        }
-        
-        // highlight comments
-        int pos = 0;
-        while((pos = text.indexOf("//", pos)) != -1) {
-            int end = text.indexOf('\n', pos);
-
-            if(end == -1)
-                end = doc.getLength();
-
-            int length = end - pos;
-
-            doc.setCharacterAttributes(pos, length, commentStyle, true);
-
-            pos += length;
-        }
+            doc.setCharacterAttributes(start, length, style, true);
+        });
         
         setProgChange();
     }
@@ -320,45 +200,6 @@ public class CasmEditorForm extends javax.swing.JFrame {
         }
     }
     
-    private static ArrayList<Instruction> readCasm(byte[] bytes) {
-        int curPos = 0;
-        ArrayList<Instruction> instructions  = new ArrayList<>();
-        
-        while(curPos < bytes.length) {
-            byte b = bytes[curPos];
-            curPos++;
-            if(b == 0x00) // End program
-                break;
-            
-            if(!INSTRUCTIONS_MAP.containsKey(Byte.toUnsignedInt(b))) {
-                System.err.println("Unknown instruction 0x"
-                        + Integer.toHexString(Byte.toUnsignedInt(b)).toUpperCase()
-                        + "! At 0x" + Integer.toHexString(curPos + 0x10).toUpperCase());
-                return null;
-            }
-            
-            Instruction mapped = INSTRUCTIONS_MAP.get(Byte.toUnsignedInt(b));
-            
-            ArrayList<Argument> args = new ArrayList<>();
-            
-            for(int i = 0; i < mapped.nargs; i++) {
-                if(mapped.args[i].getName().startsWith("s")) { // if argument is 2 bytes long
-                    args.add(new Argument(mapped.args[i].getName(),
-                            bytesToShort(bytes[curPos], bytes[curPos + 1])));
-                    curPos += 2;
-                } else {
-                    args.add(new Argument(mapped.args[i].getName(),
-                            bytes[curPos]));
-                    curPos++;
-                }
-            }
-            
-            instructions.add(new Instruction(mapped, args.toArray(new Argument[args.size()])));
-        }
-        
-        return instructions;
-    }
-    
     @SuppressWarnings("unchecked")
     // <editor-fold defaultstate="collapsed" desc="Generated Code">//GEN-BEGIN:initComponents
     private void initComponents() {
@@ -637,16 +478,15 @@ public class CasmEditorForm extends javax.swing.JFrame {
             byte[] fileContents = java.nio.file.Files.readAllBytes(
                     importFileChooser.getSelectedFile().toPath());
             
-            // truncate header
-            byte[] b = Arrays.copyOfRange(fileContents, 0x10, fileContents.length);
-            
-            ArrayList<Instruction> instructions = readCasm(b);
+            // skip the header
+            InstructionList instructions = Disassembler.read(fileContents, Disassembler.HEADER_SIZE);
             
-            String code = "";
-            for(Instruction curInst : instructions)
-                code += "    " + curInst.toCode() + '\n';
+            if(instructions == null) {
+                lbStatusBar.setText("Failed to import file!");
+                return;
+            }
             
-            editor.setText("casm {\n" + code + "}");
+            editor.setText(Disassembler.toSource(instructions));
             
             lbStatusBar.setText("Imported file successfully.");
             
@@ -677,36 +517,64 @@ public class CasmEditorForm extends javax.swing.JFrame {
         if(compileFileChooser.showSaveDialog(rootPane) != JFileChooser.APPROVE_OPTION)
             return;
         
-        byte[] byteCode;
-        if(!compiler.compiling())
-            compiler.compile(editor.getText());
-
-        long startTime = System.currentTimeMillis();
-        while(compiler.compiling()) {
-//                if(System.currentTimeMillis() - startTime > 10000) {
-//                    compiler.error("Compilation took too long! Aborting...");
-//                    lbStatusBar.setText("Failed to compile code!");
-//                    return;
-//                }
-        }
-
-        byteCode = compiler.assemble();
-        if(byteCode == null) {
-            lbStatusBar.setText("Failed to assemble compiled code!");
-            return;
-        }
-        
         File compFile = compileFileChooser.getSelectedFile();
         
-        try (FileOutputStream fos = new FileOutputStream(
-                compFile.getAbsolutePath())) {
-            fos.write(byteCode);
-            
-            lbStatusBar.setText("Exported " + compFile.getName() + " successfully!");
-        } catch (IOException ex) {
+        exporting = true;
+        itmExport.setEnabled(false);
+        lbStatusBar.setText("Compiling " + compFile.getName() + "...");
+        
+        String code = editor.getText();
+        BuildCache cache = BuildCache.getDefault();
+        
+        // copy an earlier build of the same code, or compile and write the file,
+        // all in the background. The UI is updated once it is done
+        CompletableFuture.supplyAsync(() -> BuildCache.key(code, BuildCache.DEFAULT_OPTIONS))
+                .thenCompose(key -> {
+                    if(cache.copyTo(key, compFile.toPath()))
+                        return CompletableFuture.completedFuture(true);
+                    
+                    return compiler.assembleAsync(code, EXPORT_TIMEOUT, TimeUnit.SECONDS)
+                            .thenApply(byteCode -> {
+                                if(byteCode == null)
+                                    return false;
+                                
+                                try (FileOutputStream fos = new FileOutputStream(
+                                        compFile.getAbsolutePath())) {
+                                    fos.write(byteCode);
+                                } catch (IOException ex) {
+                                    throw new UncheckedIOException(ex);
+                                }
+                                
+                                cache.put(key, byteCode);
+                                return true;
+                            });
+                })
+                .whenComplete((exported, ex) -> SwingUtilities.invokeLater(() -> {
+                    exportFinished(compFile, exported, ex);
+                }));
+    }//GEN-LAST:event_itmExportActionPerformed
+    
+    private void exportFinished(File compFile, Boolean exported, Throwable ex) {
+        exporting = false;
+        itmExport.setEnabled(true);
+        
+        if(ex instanceof CompletionException)
+            ex = ex.getCause();
+        
+        if(ex instanceof TimeoutException) {
+            System.err.println("Error: Compilation took too long! Aborting...");
+            lbStatusBar.setText("Failed to compile code!");
+        } else if(ex instanceof CancellationException) {
+            lbStatusBar.setText("Export cancelled.");
+        } else if(ex != null) {
             System.err.println(ex);
+            lbStatusBar.setText("Failed to export " + compFile.getName() + "!");
+        } else if(!exported) {
+            lbStatusBar.setText("Failed to assemble compiled code!");
+        } else {
+            lbStatusBar.setText("Exported " + compFile.getName() + " successfully!");
         }
-    }//GEN-LAST:event_itmExportActionPerformed
+    }
 
     private void itmAutoSaveActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_itmAutoSaveActionPerformed
         Settings.autoSave = !Settings.autoSave;
@@ -758,6 +626,9 @@ public class CasmEditorForm extends javax.swing.JFrame {
     private final javax.swing.Timer codeHintsTimer, saveTimer;
     
     private final ThreadedCompiler compiler = new ThreadedCompiler();
+    private boolean exporting = false; // only touched on the event dispatch thread
+    
+    private static final long EXPORT_TIMEOUT = 10; // seconds
     
     private boolean unsavedChanges = false;
     
@@ -0,0 +1,189 @@
+package chasm;
+
+import java.util.Collection;
+
+/**
+ * Finds the parts of a program the editor highlights, without touching the editor.
+ * Spans are reported in the order they have to be applied, later ones override earlier ones.
+ */
+public class SyntaxScanner {
+    public enum Kind {
+        KEYWORD,
+        BRACKET,          // bracket at the caret and its match
+        UNMATCHED_BRACKET,
+        CASM,             // CASM block, drawn without highlighting
+        COMMENT
+    }
+    
+    /** Receives the highlighted spans. */
+    public interface Sink {
+        void span(Kind kind, int start, int length);
+    }
+    
+    /**
+     * Scan a program for highlighting.
+     * @param text the program
+     * @param caret caret position, for bracket matching
+     * @param keywords uppercase keywords
+     * @param sink receives the spans
+     */
+    public static void scan(CharSequence text, int caret, Collection<String> keywords, Sink sink) {
+        int length = text.length();
+        int longest = longest(keywords);
+        
+        // color syntax words
+        int nameStart = 0;
+        for(int pos = 0; pos <= length; pos++) {
+            if(pos < length && isLetter(text.charAt(pos)))
+                continue;
+            
+            int nameLength = pos - nameStart;
+            
+            if(nameLength > 0 && nameLength <= longest
+                    && keywords.contains(upperCase(text, nameStart, pos)))
+                sink.span(Kind.KEYWORD, nameStart, nameLength);
+            
+            nameStart = pos + 1;
+        }
+        
+        matchBrackets(text, caret, sink);
+        
+        // CASM blocks are not highlighted
+        nameStart = 0;
+        for(int i = 0; i < length; i++) {
+            if(isLetter(text.charAt(i)))
+                continue;
+            
+            if(i - nameStart == 4 && upperCase(text, nameStart, i).equals("CASM")) {
+                while(i++ < length - 2 && text.charAt(i) == ' ') {}
+                
+                if(length > i && text.charAt(i++) == '{') { // begin CASM block
+                    int casmStart = i + 1;
+                    
+                    while(i++ < length - 1 && text.charAt(i) != '}') {}
+                    
+                    sink.span(Kind.CASM, casmStart - 1, i - casmStart + 1);
+                }
+            }
+            
+            nameStart = i + 1;
+        }
+        
+        // highlight comments
+        for(int pos = 0; pos < length - 1; pos++) {
+            if(text.charAt(pos) != '/' || text.charAt(pos + 1) != '/')
+                continue;
+            
+            int end = pos;
+            while(end < length && text.charAt(end) != '\n')
+                end++;
+            
+            sink.span(Kind.COMMENT, pos, end - pos);
+            pos = end;
+        }
+    }
+    
+    // Highlight the bracket at or just before the caret and its match
+    private static void matchBrackets(CharSequence text, int caret, Sink sink) {
+        if(text.length() == 0)
+            return;
+        
+        char c = 0;
+        char cprime = 0; // c` - corresponding character
+        boolean direction = false; // true = back, false = forward
+        
+        for(int i = 0; i < 2; i++) {
+            if(caret >= text.length()) {
+                caret = text.length() - 1;
+                continue;
+            }
+            
+            if(caret < 0)
+                return;
+            
+            c = text.charAt(caret);
+            
+            switch(c) {
+                case '(':
+                    cprime = ')';
+                    direction = false;
+                    break;
+                case ')':
+                    cprime = '(';
+                    direction = true;
+                    break;
+                case '{':
+                    cprime = '}';
+                    direction = false;
+                    break;
+                case '}':
+                    cprime = '{';
+                    direction = true;
+                    break;
+                default:
+                    caret--;
+            }
+        }
+        
+        if(cprime == 0)
+            return;
+        
+        int count = 1;
+        int primeIndex = -1;
+        
+        // Go back or forward
+        if(direction) {
+            for(int i = caret - 1; i >= 0; i--) {
+                char x = text.charAt(i);
+                
+                if(x == c)
+                    count++;
+                else if(x == cprime && --count == 0) {
+                    primeIndex = i;
+                    break;
+                }
+            }
+        } else {
+            for(int i = caret + 1; i < text.length(); i++) {
+                char x = text.charAt(i);
+                
+                if(x == c)
+                    count++;
+                else if(x == cprime && --count == 0) {
+                    primeIndex = i;
+                    break;
+                }
+            }
+        }
+        
+        if(primeIndex == -1) {
+            sink.span(Kind.UNMATCHED_BRACKET, caret, 1);
+        } else {
+            sink.span(Kind.BRACKET, caret, 1);
+            sink.span(Kind.BRACKET, primeIndex, 1);
+        }
+    }
+    
+    private static boolean isLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+    
+    private static String upperCase(CharSequence text, int start, int end) {
+        char[] name = new char[end - start];
+        
+        for(int i = 0; i < name.length; i++)
+            name[i] = Character.toUpperCase(text.charAt(start + i));
+        
+        return new String(name);
+    }
+    
+    // Names longer than every keyword are skipped without building a string
+    private static int longest(Collection<String> keywords) {
+        int longest = 0;
+        
+        for(String keyword : keywords)
+            longest = Math.max(longest, keyword.length());
+        
+        return longest;
+    }
+}
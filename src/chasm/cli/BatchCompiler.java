@@ -0,0 +1,241 @@
+package chasm.cli;
+
+import chasm.compiler.BuildCache;
+import chasm.compiler.CompileResult;
+import chasm.compiler.ThreadedCompiler;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/**
+ * Command line compiler, for building ChASM programs without the editor.
+ * <p>
+ * Usage: {@code java -cp ChASM.jar chasm.cli.BatchCompiler [-o outDir] [-j threads] [--no-cache] <files or directories>}
+ * <p>
+ * Directories are searched for .chasm files recursively. The sources are compiled in
+ * parallel on a fork-join pool and written next to them as .casm files, or into the
+ * output directory, keeping their paths relative to the directories given. Sources that
+ * were built before are copied from the {@link BuildCache}. Exits with status 1 if any
+ * source failed to compile.
+ */
+public class BatchCompiler {
+    public static void main(String[] args) {
+        Path outDir = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        BuildCache cache = BuildCache.getDefault();
+        ArrayList<Path> inputs = new ArrayList();
+        
+        for(int i = 0; i < args.length; i++) {
+            try {
+                switch(args[i]) {
+                    case "-o":
+                        outDir = Paths.get(args[++i]);
+                        break;
+                    case "-j":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--no-cache":
+                        cache = null;
+                        break;
+                    default:
+                        inputs.add(Paths.get(args[i]));
+                }
+            } catch(ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+                usage();
+                return;
+            }
+        }
+        
+        if(inputs.isEmpty() || threads < 1) {
+            usage();
+            return;
+        }
+        
+        try {
+            System.exit(new BatchCompiler(outDir, threads, cache).run(inputs) ? 0 : 1);
+        } catch(IOException ex) {
+            System.err.println("Error: " + ex);
+            System.exit(1);
+        }
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: java -cp ChASM.jar chasm.cli.BatchCompiler [-o outDir] [-j threads] [--no-cache] <files or directories>");
+        System.exit(2);
+    }
+    
+    /**
+     * @param outDir directory the .casm files are written to, or null to write them next to their sources
+     * @param threads how many sources are compiled at once
+     * @param cache cache of earlier builds, or null to always compile
+     */
+    public BatchCompiler(Path outDir, int threads, BuildCache cache) {
+        this.outDir = outDir;
+        this.threads = threads;
+        this.cache = cache;
+    }
+    
+    /**
+     * Compile every source and print the results.
+     * @param inputs .chasm files, or directories containing them
+     * @return true if every source compiled
+     */
+    public boolean run(List<Path> inputs) throws IOException {
+        // every source, with its path relative to the input it was found in
+        Map<Path, Path> sources = findSources(inputs);
+        
+        if(sources.isEmpty()) {
+            System.err.println("Error: No .chasm files found.");
+            return false;
+        }
+        
+        if(outDir != null)
+            Files.createDirectories(outDir);
+        
+        long start = System.nanoTime();
+        
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<Job> jobs;
+        
+        try {
+            jobs = pool.submit(() -> sources.entrySet().parallelStream()
+                    .map(source -> compile(source.getKey(), source.getValue()))
+                    .collect(Collectors.toList())).get();
+        } catch(InterruptedException | ExecutionException ex) {
+            throw new IOException("Compilation interrupted", ex);
+        } finally {
+            pool.shutdown();
+        }
+        
+        long elapsed = System.nanoTime() - start;
+        
+        // report in input order, output of parallel jobs would interleave
+        int failed = 0, cached = 0, folds = 0;
+        long sourceBytes = 0;
+        
+        for(Job job : jobs) {
+            sourceBytes += job.sourceBytes;
+            folds += job.folds;
+            
+            if(job.cached)
+                cached++;
+            
+            if(job.error != null) {
+                failed++;
+                System.err.println(job.source + ": failed in " + millis(job.time) + " ms");
+                System.err.println(job.error.trim());
+            } else {
+                System.out.println(job.source + " -> " + job.output + ": " + job.outputBytes
+                        + " bytes in " + millis(job.time) + " ms" + (job.cached ? " (cached)" : ""));
+            }
+        }
+        
+        double seconds = elapsed / 1e9;
+        
+        System.out.println(String.format("Compiled %d of %d files (%d KB, %d cached, %d operations folded) in %s ms on %d thread%s: %.1f files/s, %.1f KB/s.",
+                jobs.size() - failed, jobs.size(), sourceBytes / 1024, cached, folds, millis(elapsed), threads, threads != 1 ? "s" : "",
+                jobs.size() / seconds, sourceBytes / 1024.0 / seconds));
+        
+        return failed == 0;
+    }
+    
+    private final Path outDir;
+    private final int threads;
+    private final BuildCache cache;
+    
+    /** Outcome of compiling one source. */
+    private static class Job {
+        Path source, output;
+        long sourceBytes, outputBytes;
+        long time; // in ns
+        int folds; // operations evaluated at compile time, none if cached
+        boolean cached = false;
+        String error = null;
+    }
+    
+    private Job compile(Path source, Path relative) {
+        Job job = new Job();
+        job.source = source;
+        job.output = outputFor(source, relative);
+        
+        long start = System.nanoTime();
+        
+        try {
+            byte[] bytes = Files.readAllBytes(source);
+            job.sourceBytes = bytes.length;
+            
+            String code = new String(bytes, StandardCharsets.UTF_8);
+            String key = cache != null ? BuildCache.key(code, BuildCache.DEFAULT_OPTIONS) : null;
+            
+            Files.createDirectories(job.output.getParent());
+            
+            if(cache != null && cache.copyTo(key, job.output)) {
+                job.cached = true;
+                job.outputBytes = Files.size(job.output);
+            } else {
+                // every job gets its own compiler, they keep their state per instance
+                ThreadedCompiler compiler = new ThreadedCompiler();
+                compiler.setReporting(false);
+                
+                CompileResult result = compiler.compileOnCallingThread(code);
+                byte[] byteCode = result.toByteCode();
+                job.folds = result.getFoldCount();
+                
+                if(byteCode == null) {
+                    job.error = result.getDiagnostics().toString();
+                } else {
+                    Files.write(job.output, byteCode);
+                    job.outputBytes = byteCode.length;
+                    
+                    if(cache != null)
+                        cache.put(key, byteCode);
+                }
+            }
+        } catch(IOException | RuntimeException ex) {
+            job.error = "Error: " + ex;
+        }
+        
+        job.time = System.nanoTime() - start;
+        
+        return job;
+    }
+    
+    private Path outputFor(Path source, Path relative) {
+        String name = source.getFileName().toString();
+        
+        if(name.endsWith(".chasm"))
+            name = name.substring(0, name.length() - ".chasm".length());
+        
+        if(outDir == null)
+            return source.toAbsolutePath().resolveSibling(name + ".casm");
+        
+        return outDir.resolve(relative).resolveSibling(name + ".casm");
+    }
+    
+    private static Map<Path, Path> findSources(List<Path> inputs) throws IOException {
+        LinkedHashMap<Path, Path> sources = new LinkedHashMap();
+        
+        for(Path input : inputs) {
+            if(Files.isDirectory(input)) {
+                try (Stream<Path> files = Files.walk(input)) {
+                    files.filter(f -> f.toString().endsWith(".chasm") && Files.isRegularFile(f))
+                            .sorted()
+                            .forEach(f -> sources.put(f, input.relativize(f)));
+                }
+            } else if(Files.isRegularFile(input)) {
+                sources.put(input, input.getFileName());
+            } else {
+                throw new FileNotFoundException(input.toString());
+            }
+        }
+        
+        return sources;
+    }
+    
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+}
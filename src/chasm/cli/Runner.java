@@ -0,0 +1,110 @@
+package chasm.cli;
+
+import chasm.compiler.CompileResult;
+import chasm.compiler.ThreadedCompiler;
+import chasm.vm.VMException;
+import chasm.vm.VirtualMachine;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import javax.imageio.ImageIO;
+
+/**
+ * Runs a program on the {@link VirtualMachine}, for testing without the target hardware.
+ * <p>
+ * Usage: {@code java -cp ChASM.jar chasm.cli.Runner [-n maxInstructions] [-v variables] [-o screen.png] [--jit] <file.casm or file.chasm>}
+ * <p>
+ * ChASM sources are compiled first. Prints the registers, the first variables (8 unless given with
+ * {@code -v}, at most 256) and the speed of the VM once the program halts, and saves the display as an
+ * image if asked to. With {@code --jit}, hot code is translated to JVM classes.
+ */
+public class Runner {
+    public static void main(String[] args) {
+        long max = Long.MAX_VALUE;
+        int variables = 8;
+        Path image = null;
+        Path input = null;
+        boolean jit = false;
+        
+        try {
+            for(int i = 0; i < args.length; i++) {
+                switch(args[i]) {
+                    case "-n":
+                        max = Long.parseLong(args[++i]);
+                        break;
+                    case "-v":
+                        variables = Integer.parseInt(args[++i]);
+                        
+                        if(variables < 0 || variables > VirtualMachine.VARIABLES)
+                            throw new IllegalArgumentException();
+                        break;
+                    case "-o":
+                        image = Paths.get(args[++i]);
+                        break;
+                    case "--jit":
+                        jit = true;
+                        break;
+                    default:
+                        if(input != null)
+                            throw new IllegalArgumentException();
+                        
+                        input = Paths.get(args[i]);
+                }
+            }
+        } catch(ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+            input = null;
+        }
+        
+        if(input == null) {
+            System.err.println("Usage: java -cp ChASM.jar chasm.cli.Runner [-n maxInstructions] [-v variables] [-o screen.png] [--jit] <file.casm or file.chasm>");
+            System.exit(2);
+        }
+        
+        try {
+            byte[] byteCode = Files.readAllBytes(input);
+            
+            if(input.toString().endsWith(".chasm")) {
+                ThreadedCompiler compiler = new ThreadedCompiler();
+                compiler.setReporting(false);
+                
+                CompileResult result = compiler.compileOnCallingThread(new String(byteCode, StandardCharsets.UTF_8));
+                byteCode = result.toByteCode();
+                
+                if(byteCode == null) {
+                    System.err.println(result.getDiagnostics().toString().trim());
+                    System.exit(1);
+                }
+            }
+            
+            VirtualMachine vm = new VirtualMachine(byteCode);
+            vm.setJitEnabled(jit);
+            boolean failed = false;
+            
+            try {
+                vm.run(max);
+            } catch(VMException ex) {
+                System.err.println("Error: " + ex.getMessage());
+                failed = true;
+            }
+            
+            StringBuilder state = new StringBuilder();
+            for(int reg = 0; reg < 8; reg++)
+                state.append(" r").append(reg).append('=').append(vm.getRegister(reg));
+            for(int var = 0; var < variables; var++)
+                state.append(" v").append(var).append('=').append(vm.getVariable(var));
+            
+            System.out.println((vm.isHalted() ? "Halted" : "Stopped") + " after " + vm.getInstructionCount()
+                    + " instructions, " + vm.getFramebuffer().getFrameCount() + " frames:" + state);
+            System.out.println(String.format("%.1f million instructions/s", vm.getInstructionsPerSecond() / 1e6)
+                    + (jit ? ", " + vm.getCompiledBlockCount() + " blocks compiled." : "."));
+            
+            if(image != null)
+                ImageIO.write(vm.getFramebuffer().getImage(), "png", image.toFile());
+            
+            System.exit(failed ? 1 : 0);
+        } catch(IOException | VMException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -1,258 +1,325 @@
 package chasm.compiler;
 
 import chasm.ChASM;
+import static chasm.MathUtils.*;
 import chasm.instructions.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Assembler {
     
-    private static byte[] bytes = null;
+    private final CharSequence text;
+    private final InstructionList program = new InstructionList();
     
-    private static Thread t;
-    private static ArrayList<Instruction> instructions = new ArrayList();
-    private static String text;
-    private static char c;
-    private static int index = -1;
+    private PeepholeOptimizer optimizer = null;
+    private PeepholeOptimizer.Report optimizerReport = null;
+    private Diagnostics diagnostics;
+    private char c;
+    private int index = -1;
     
-    public static void assemble(String source) {
-        bytes = null;
-        
-        if(t != null && t.isAlive())
-            t.stop();
-        
-        t = new Thread(() -> {
-            bytes = toByteCode(source);
-        }, "Assembler-Work Thread");
-        
-        t.start();
+    // name of the last token read by getName(), kept in place to avoid garbage
+    private final char[] name = new char[32];
+    private int nameLength = 0;
+    private int nameKey = MnemonicIndex.EMPTY_KEY; // packed name for the MnemonicIndex
+    
+    private static final char END = '\0'; // returned by getChar() past the end of the code
+    
+    private static final int LBL_SIZE = 4; // LBL(lId, sAddress)
+    
+    // Dabbed AF + padding
+    private static final byte[] HEADER = {
+        (byte) 0xDA, (byte) 0xBB, (byte) 0xED, (byte) 0xAF,
+        (byte) 0xAB, (byte) 0xAB, (byte) 0xAB, (byte) 0xAB,
+        (byte) 0xAB, (byte) 0xAB, (byte) 0xAB, (byte) 0xAB,
+        (byte) 0xAB, (byte) 0xAB, (byte) 0xAB, (byte) 0xAB
+    };
+    
+    /**
+     * Assembler constructor. Every Assembler holds its own parsing state, so separate
+     * instances can assemble on any number of threads at once.
+     * @param source CASM code to assemble
+     */
+    public Assembler(CharSequence source) {
+        text = source;
     }
     
-    public static boolean assembling() {
-        return t == null ? false : t.isAlive();
+    /**
+     * Assemble the source on a worker of the given executor.
+     * @param source CASM code to assemble
+     * @param executor executor to run the assembler on
+     * @return a future completing with the bytecode, or exceptionally with an
+     *         {@link AssemblerException} if the code is invalid
+     */
+    public static CompletableFuture<byte[]> assembleAsync(CharSequence source, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> new Assembler(source).assemble(), executor);
     }
     
-    public static byte[] getByteCode() {
-        if(t == null || t.isAlive()) {
-            System.err.println("Did not wait for assembler to finish...");
-            return null;
-        }
-        
-        return bytes;
+    /** Assemble the source on the common fork-join pool. */
+    public static CompletableFuture<byte[]> assembleAsync(CharSequence source) {
+        return assembleAsync(source, ForkJoinPool.commonPool());
     }
     
-    private static byte[] toByteCode(String casm) {
-        text = prepare(casm);
-        instructions.clear();
-        c = ' ';
-        index = -1;
-        getChar();
-        
-        
-        /***************************************************
-         * First Pass - Move all LBLs to the beginning.
-         **************************************************/
+    /**
+     * Assemble the source on the current thread.
+     * @return the bytecode, including the header
+     * @throws AssemblerException if the code is invalid, carrying every error found
+     */
+    public synchronized byte[] assemble() {
+        return toByteCode();
+    }
+    
+    /**
+     * Parse the source without encoding it, for code that is assembled as part of a
+     * larger program. The optimizer is not run.
+     * @param out list the parsed instructions are added to
+     * @throws AssemblerException if the code is invalid, carrying every error found
+     */
+    public synchronized void parse(InstructionList out) {
+        parseAll();
+        out.addAll(program);
+    }
+    
+    /** Set the optimizer run over the parsed program before encoding it, or null for none. */
+    public void setOptimizer(PeepholeOptimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+    
+    /** @return the report of the last optimizer run, or null if there was none */
+    public PeepholeOptimizer.Report getOptimizerReport() {
+        return optimizerReport;
+    }
+    
+    private byte[] toByteCode() {
+        parseAll();
         
-        int lblCount = 0;
-        while(index + 1  < text.length()) {
-            Instruction curInst = parseInstruction();
-            
-            if(curInst.id == (byte) 0xFF) {
-                lblCount++;
-            }
-        }
+        if(optimizer != null)
+            optimizerReport = optimizer.optimize(program);
         
-        instructions.clear();
+        return encode(program);
+    }
+    
+    private void parseAll() {
+        program.clear();
+        diagnostics = new Diagnostics(text);
         c = ' ';
         index = -1;
         getChar();
         
-        String topLbls = "";
-        ArrayList<Instruction> pastInsts = new ArrayList();
+        /*******************************************
+         * Parse all instructions.
+         ******************************************/
         
-        while(index + 1  < text.length()) {
-            int startIndex = index;
-            Instruction curInst = parseInstruction();
-            int instSize = index - startIndex;
-            
-            if(curInst.id == (byte) 0xFF) {
-                topLbls += "LBL(L" + curInst.args[0].getValue() + ",#" + (sizeOf(pastInsts) + (lblCount * 4)) + ")";
-                
-                // cut out the special lbl instruction
-                index -= instSize;
-                String text1 = text.substring(0, index);
-                String text2 = text.substring(index + instSize, text.length());
+        while(c != END) {
+            try {
+                parseInstruction();
+            } catch(ParseError e) {
+                if(diagnostics.isFull())
+                    break;
                 
-                text = text1 + text2;
-            } else {
-                pastInsts.add(curInst);
+                recover();
             }
         }
         
-        text = topLbls + text;
-        
-        System.out.println("\n\n" + text);
+        if(diagnostics.hasErrors())
+            throw new AssemblerException(diagnostics);
+    }
+    
+    /**
+     * Generate the bytecode of a program in a single pass. Shortcut LBLs are not emitted,
+     * their code offset is recorded in the fixup table instead and the LBL block is
+     * patched in front of the code at the end.
+     * @param program instructions to encode
+     * @return the bytecode, including the header
+     */
+    public static byte[] encode(InstructionList program) {
+        ByteEmitter code = new ByteEmitter(program.size() * 3);
+        ArrayList<int[]> labelFixups = new ArrayList(); // { label ID, code offset }
+        
+        for(int i = 0; i < program.size(); i++) {
+            long inst = program.get(i);
+            
+            if(InstructionList.opcode(inst) == InstructionList.SHORTCUT_LBL)
+                labelFixups.add(new int[] { InstructionList.operand(inst, 0), code.size() });
+            else
+                InstructionList.encode(inst, code);
+        }
         
-        instructions.clear();
-        c = ' ';
-        index = -1;
-        getChar();
+        int lblBlockSize = labelFixups.size() * LBL_SIZE;
+        byte[] byteCode = new byte[HEADER.length + lblBlockSize + code.size()];
         
-        /*******************************************
-         * Second Pass - Parse all instructions.
-         ******************************************/
+        System.arraycopy(HEADER, 0, byteCode, 0, HEADER.length);
         
-        // parse the instruction from the current line
-        while(c != '.' && index < text.length()) {
-            instructions.add(parseInstruction());
-        }
-
-        /**********************
-         * Generate bytecode.
-         *********************/
-
-        // Dabbed AF (header)
-        ArrayList<Byte> byteCode = new ArrayList(Arrays.asList(
-                (byte) 0xDA, (byte) 0xBB, (byte) 0xED, (byte) 0xAF));
-
-        // padding
-        for(int i = 0; i < 0xC; i++)
-            byteCode.add((byte) 0xAB);
-
-        // turn instructions into bytecode
-        for(Instruction curInstruction : instructions)
-            byteCode.addAll(curInstruction.toByteCode());
-
-        // convert array for returning
-        byte[] byteCodeArray = new byte[byteCode.size()];
-        for(int i = 0; i < byteCode.size(); i++) {
-            byte b = byteCode.get(i);
-            byteCodeArray[i] = b;
+        // patch the LBL block: every address is shifted by the block itself
+        int pos = HEADER.length;
+        for(int[] fixup : labelFixups) {
+            char address = (char) (fixup[1] + lblBlockSize);
+            
+            byteCode[pos++] = 0x06;
+            byteCode[pos++] = (byte) fixup[0];
+            byteCode[pos++] = getLeftByte(address);
+            byteCode[pos++] = getRightByte(address);
         }
         
-        return byteCodeArray;
-    }
-    
-    private static int sizeOf(ArrayList<Instruction> insts) {
-        int size = 0;
-        
-        for(Instruction inst : insts) {
-            if(inst.id == (byte) 0xFF)
-                System.err.println("Encountered fake LBL in sizeOf. This should not happen, LBL addresses will be INCORRECT.");//size += 4; // special lbl instruction
-            else
-                size += inst.toByteCode().size();
-        }
+        code.copyTo(byteCode, pos);
         
-        return size;
+        return byteCode;
     }
     
-    private static void encountered(Instruction inst, String expectedArg, String foundType) {
+    private void encountered(Instruction inst, String expectedArg, String foundType) {
         error("Expected argument of type " + expectedArg + " but found a " + foundType + " argument."
                         + "\nIn instruction " + inst.fullName() + "!");
     }
     
-    public static void error(String text) {
-        System.err.println(text);
-        t.stop();
+    // Record an error at the current character and give up on the instruction
+    private void error(String text) {
+        diagnostics.error(Math.min(index, this.text.length() - 1), text);
+        throw new ParseError();
     }
     
-    private static String getName() {
-        String name = "";
-        
-        while(c >= 'A' && c <= 'Z') {
-            name += Character.toUpperCase(c);
+    /** Skip the rest of a broken instruction: past a ')' that is followed by the
+     * next instruction name or the end of the code. **/
+    private void recover() {
+        while(c != END) {
+            boolean closing = c == ')';
             getChar();
+            
+            if(closing && (c == END || (c >= 'A' && c <= 'Z')))
+                return;
         }
-        
-        return name;
     }
     
-    private static void getChar() {
-        if(++index >= text.length())
-            error("Reached end of code unexpectedly!");
+    /** Read a name into the name buffer.
+     * @return the length of the name, 0 if there is none **/
+    private int getName() {
+        nameLength = 0;
+        nameKey = MnemonicIndex.EMPTY_KEY;
+        
+        while((c >= 'A' && c <= 'Z') || c == '_') {
+            if(nameLength < name.length)
+                name[nameLength] = c;
+            
+            nameKey = MnemonicIndex.append(nameKey, c, nameLength);
+            nameLength++;
+            getChar();
+        }
         
-        c = text.charAt(index);
+        return nameLength;
     }
     
-    private static void match(char m) {
-        if(c != m)
-            error("Expected '" + m + "'");
+    /** Compare the name buffer against an uppercase name without copying it. **/
+    private boolean nameEquals(String s) {
+        if(nameLength != s.length())
+            return false;
+        
+        for(int i = 0; i < nameLength; i++) {
+            if(name[i] != s.charAt(i))
+                return false;
+        }
         
-        getChar();
+        return true;
     }
     
-    private static byte getByte() {
-        String num = "";
-        while(c >= '0' && c <= '9') {
-            num += c;
-            getChar();
+    private String nameString() {
+        return new String(name, 0, Math.min(nameLength, name.length));
+    }
+    
+    /** Move to the next significant character. Spaces and comments are skipped
+     * and letters are uppercased on the fly, so the source is never copied. **/
+    private void getChar() {
+        while(++index < text.length()) {
+            char next = text.charAt(index);
+            
+            if(next == ' ' || next == '\t' || next == '\r' || next == '\n')
+                continue;
+            
+            if(next == '/' && index + 1 < text.length() && text.charAt(index + 1) == '/') {
+                // skip the comment up to the end of the line
+                while(index + 1 < text.length() && text.charAt(index + 1) != '\n')
+                    index++;
+                
+                continue;
+            }
+            
+            c = (next >= 'a' && next <= 'z') ? (char) (next - ('a' - 'A')) : next;
+            return;
         }
         
-        if(num.isEmpty())
-            error("Expected byte.");
-        
-        int i = Integer.parseInt(num);
+        index = text.length();
+        c = END;
+    }
+    
+    private void match(char m) {
+        if(c == END)
+            error("Reached end of code unexpectedly!");
         
-        if(i < 0 || i > 255)
-            error("Expected byte value within 0 and 255.");
+        if(c != m)
+            error("Expected '" + m + "'");
         
-        return (byte) i;
+        getChar();
     }
     
-    private static int getShort() {
-        String num = "";
+    /** Read a decimal number by accumulating its digits. **/
+    private int getNumber(int max, String type, String range) {
+        if(!(c >= '0' && c <= '9'))
+            error("Expected " + type + ".");
+        
+        int i = 0;
         while(c >= '0' && c <= '9') {
-            num += c;
+            if(i <= max) // stop accumulating once out of range so it can't overflow
+                i = i * 10 + (c - '0');
+            
             getChar();
         }
         
-        if(num.isEmpty())
-            error("Expected short.");
-        
-        int i = Integer.parseInt(num);
-        
-        if(i < 0 || i > 65535)
-            error("Expected short value within 0 and 65,535.");
+        if(i > max)
+            error("Expected " + type + " value within 0 and " + range + ".");
         
         return i;
     }
     
-    /** Parse an instruction from a line of text. **/
-    private static Instruction parseInstruction() {
-        ArrayList<Argument> arguments = new ArrayList();
-        
+    private byte getByte() {
+        return (byte) getNumber(255, "byte", "255");
+    }
+    
+    private int getShort() {
+        return getNumber(65535, "short", "65,535");
+    }
+    
+    /** Parse an instruction from a line of text and add it to the program. **/
+    private void parseInstruction() {
         // get instruction name
-        String instructionName = getName();
-        
-        if(instructionName.isEmpty())
+        if(getName() == 0)
             error("Expected instruction name.");
         
-        Instruction identifier = getInstructionKey(instructionName);
+        Instruction identifier = getInstructionKey();
         
         if(identifier == null)
-            error("Unknown instruction: " + instructionName + ".");
+            error("Unknown instruction: " + nameString() + ".");
         
         match('(');
         
+        long inst = InstructionList.pack(identifier.id);
+        
         int argsFound = 0;
         int curUsedReg = 1; // used when a number arg is entered where a register is expected
                             // a MOV to a temp register is inserted and then that register is used
         
         while (c != ')') {
+            if(argsFound >= identifier.nargs)
+                error("Too many arguments found for instruction " + identifier + ".");
+            
             String curArgName = identifier.args[argsFound].getName();
+            int value = 0;
             
             if(curArgName.equals("#CompType") && c != '#') {
-                String compName = "";
-                while((c >= 'A' && c <= 'Z') || c == '_') {
-                    compName += c;
-                    getChar();
-                }
+                getName();
                 
-                Relation rel = Relation.fromString(compName);
+                Relation rel = getRelation();
                 
                 if(rel == null)
-                    error("Unknown relation name " + compName + ".");
+                    error("Unknown relation name " + nameString() + ".");
                 
-                arguments.add(new Argument(curArgName, rel.getId()));
+                value = rel.getId();
             } else {
                 switch (c) {
                     case 'C': // color arg
@@ -274,26 +341,20 @@ public class Assembler {
 
                         byte rgb = (byte) ((r << 5) | (g << 2) | b); // RRR GGG BB
 
-                        instructions.add(new Instruction(ChASM.INSTRUCTIONS_MAP.get(0x09), new Argument[] {
-                            new Argument("rTo", curUsedReg),
-                            new Argument("#Val", rgb)
-                        })); // MOV the color to an unused reg
+                        program.add(InstructionList.pack(0x09, curUsedReg, rgb)); // MOV the color to an unused reg
 
-                        arguments.add(new Argument(curArgName, curUsedReg++));
+                        value = curUsedReg++;
 
                         break;
                     case '#': // number arg
                         match('#');
 
                         if(!curArgName.startsWith("#") && !curArgName.startsWith("s")) {
-                            instructions.add(new Instruction(ChASM.INSTRUCTIONS_MAP.get(0x09), new Argument[] {
-                                        new Argument("rTo", curUsedReg),
-                                        new Argument("#Val", getByte())
-                                    })); // MOV the value to an unused reg
+                            program.add(InstructionList.pack(0x09, curUsedReg, getByte())); // MOV the value to an unused reg
 
-                            arguments.add(new Argument(curArgName, curUsedReg++));
+                            value = curUsedReg++;
                         } else {
-                            arguments.add(new Argument(curArgName, (curArgName.startsWith("s") ? getShort() : getByte())));
+                            value = curArgName.startsWith("s") ? getShort() : getByte();
                         }
 
                         break;
@@ -305,7 +366,7 @@ public class Assembler {
                         match('P');
                         match('+');
 
-                        arguments.add(new Argument(curArgName, 10));
+                        value = InstructionList.SP;
 
                         break;
                     case 'R':  // register argument
@@ -317,7 +378,7 @@ public class Assembler {
                         if(!(c >= '0' && c <= '7'))
                             error("Invalid register ID " + c + ".");
 
-                        arguments.add(new Argument(curArgName, Integer.parseInt("" + c)));
+                        value = c - '0';
 
                         getChar();
 
@@ -328,7 +389,7 @@ public class Assembler {
                         if(!curArgName.startsWith("l"))
                             encountered(identifier, curArgName, "label");
 
-                        arguments.add(new Argument(curArgName, getByte()));
+                        value = getByte();
                         break;
                     case 'V': // variable ID
                         match('V');
@@ -336,85 +397,59 @@ public class Assembler {
                         if(!curArgName.startsWith("v"))
                             encountered(identifier, curArgName, "variable");
 
-                        arguments.add(new Argument(curArgName, getByte()));
+                        value = getByte();
                         break;
                     default:
                         error("Encountered unknown argument type " + c + " while parsing " + identifier + ".");
                 }
             }
             
+            inst = InstructionList.withOperand(inst, argsFound, value);
             argsFound++;
             
-            if(argsFound > identifier.nargs)
-                error("Too many arguments found for instruction " + identifier + ".");
-            
             if(c == ')')
                 break;
             
             match(',');
         }
         
+        int closingIndex = index;
         match(')');
         
-        Instruction ret;
-        
-        if(instructionName.equals("LBL") && arguments.size() < 2) {
+        if(identifier.id == 0x06 && argsFound == 1) {
             // shortcut lbl, needs to be moved to beginning w/ address arg
-            ret = new Instruction(0xFF, instructionName, arguments.toArray(new Argument[arguments.size()]));
+            inst = InstructionList.pack(InstructionList.SHORTCUT_LBL, InstructionList.operand(inst, 0));
+        } else if(argsFound < identifier.nargs) {
+            int needed = identifier.nargs - argsFound;
             
-        } else {
-            if(argsFound < identifier.nargs)
-            {
-                int needed = identifier.nargs - argsFound;
-                error("Instruction " + identifier + " is missing " + needed + " argument" + (needed != 1 ? "s." : "."));
-            }
-            
-            ret = new Instruction(identifier, arguments.toArray(new Argument[arguments.size()]));
+            // the instruction is over, so the next one can be parsed as usual
+            diagnostics.error(closingIndex, "Instruction " + identifier + " is missing " + needed + " argument" + (needed != 1 ? "s." : "."));
+            return;
         }
         
-        return ret;
-    }
-    
-    /** Remove spaces and comments for parsing instructions. **/
-    private static String prepare(String text) {
-        text = text.replace(" " , ""); // remove all spaces
-        
-        text = text.replace("\n", "\n ");
-        String[] lines = text.split("\n");
-        
-        text = "";
-        // remove comment if there is one
-        for(String line : lines) {
-            if(line.length() > 1) {
-                for(int i = 0; i < line.length() - 1; i++) {
-                    if(line.charAt(i) == '/'
-                            && line.charAt(i + 1) == '/') {
-                        line = line.substring(0, i);
-                        break;
-                    }
-                }
-            }
-            
-            text += line.trim();
-        }
-        
-        return text.toUpperCase() + '.'; // add termination char
+        program.add(inst);
     }
     
     /** Helper method for parsing instructions.
      * @param instructionName the name of the instruction
      * @return an instruction from the documented list based on the name**/
     public static Instruction getInstructionKey(String instructionName) {
-        Instruction ret = null;
-        
-        for(Instruction i : ChASM.INSTRUCTIONS_MAP.values()) {
-            if(i.name.toUpperCase().equals(instructionName)) {
-                ret = i;
-                break;
-            }
+        return MnemonicIndex.lookup(MnemonicIndex.pack(instructionName.toUpperCase()));
+    }
+    
+    /** Look up the instruction whose name is in the name buffer. **/
+    private Instruction getInstructionKey() {
+        return MnemonicIndex.lookup(nameKey);
+    }
+    
+    /** Look up the relation whose name is in the name buffer. **/
+    private Relation getRelation() {
+        for(Relation rel : Relation.values()) {
+            if(nameEquals(rel.toString()))
+                return rel;
         }
         
-        return ret;
+        return null;
     }
     
     private enum Relation {
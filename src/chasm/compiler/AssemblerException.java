@@ -0,0 +1,26 @@
+package chasm.compiler;
+
+import java.util.*;
+
+/** Thrown by the {@link Assembler} when the CASM code it is given is invalid. */
+public class AssemblerException extends RuntimeException {
+    public AssemblerException(String message) {
+        super(message);
+        diagnostics = Collections.emptyList();
+    }
+    
+    /** @param diagnostics every problem found in the code */
+    public AssemblerException(Diagnostics diagnostics) {
+        super(diagnostics.toString().trim());
+        this.diagnostics = diagnostics.getAll();
+    }
+    
+    /** @return every problem found in the code, empty if it was not assembled from source */
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+    
+    private final List<Diagnostic> diagnostics;
+    
+    private static final long serialVersionUID = 1L;
+}
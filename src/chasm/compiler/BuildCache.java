@@ -0,0 +1,212 @@
+package chasm.compiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.*;
+import java.util.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/**
+ * On-disk cache of compiled programs, in {@code ~/.ChASM/cache}.
+ * <p>
+ * Entries are named after the SHA-256 of the compiler version, the build options and
+ * the source, so a changed compiler never reuses old builds. Entries are written to a
+ * temporary file first and then moved into place, so readers never see half a file.
+ * Once the cache grows past its size limit, the least recently used entries are
+ * deleted. The cache is only an optimization: failures are logged and otherwise ignored.
+ */
+public class BuildCache {
+    /** Size limit of the default cache, in bytes. */
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+    
+    /** Options of the builds made by {@link CompileResult#toByteCode()}. */
+    public static final String DEFAULT_OPTIONS = "peephole";
+    
+    /** @param dir directory holding the entries, created when needed */
+    public BuildCache(Path dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+    
+    /** @return the cache shared by the editor and the batch compiler */
+    public static synchronized BuildCache getDefault() {
+        if(defaultCache == null)
+            defaultCache = new BuildCache(Paths.get(System.getProperty("user.home"), ".ChASM", "cache"), DEFAULT_MAX_SIZE);
+        
+        return defaultCache;
+    }
+    
+    private static BuildCache defaultCache = null;
+    
+    /**
+     * @param source ChASM source code
+     * @param options anything else the build depends on
+     * @return the key the build of the source is cached under
+     */
+    public static String key(String source, String options) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            
+            sha.update(ThreadedCompiler.VERSION.getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);
+            sha.update(options.getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);
+            sha.update(source.getBytes(StandardCharsets.UTF_8));
+            
+            StringBuilder hex = new StringBuilder(64);
+            for(byte b : sha.digest())
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            
+            return hex.toString();
+        } catch(NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // every JVM has SHA-256
+        }
+    }
+    
+    /** @return the cached bytecode, or null if there is none */
+    public byte[] get(String key) {
+        Path entry = entry(key);
+        
+        try {
+            byte[] byteCode = Files.readAllBytes(entry);
+            touch(entry);
+            
+            return byteCode;
+        } catch(NoSuchFileException ex) {
+            return null;
+        } catch(IOException ex) {
+            log(ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Copy the cached bytecode to a file, without reading it into memory.
+     * @return true if it was cached and copied
+     */
+    public boolean copyTo(String key, Path target) {
+        Path entry = entry(key);
+        
+        try {
+            Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING);
+            touch(entry);
+            
+            return true;
+        } catch(NoSuchFileException ex) {
+            return false;
+        } catch(IOException ex) {
+            log(ex);
+            return false;
+        }
+    }
+    
+    /** Add bytecode to the cache, evicting old entries if it grows too large. */
+    public void put(String key, byte[] byteCode) {
+        try {
+            Files.createDirectories(dir);
+            
+            long replaced = 0; // size of the entry being rewritten, if any
+            
+            try {
+                replaced = Files.size(entry(key));
+            } catch(NoSuchFileException ex) {
+                // a new entry
+            }
+            
+            Path temp = Files.createTempFile(dir, key, ".tmp");
+            
+            try {
+                Files.write(temp, byteCode);
+                
+                try {
+                    Files.move(temp, entry(key), StandardCopyOption.ATOMIC_MOVE);
+                } catch(AtomicMoveNotSupportedException ex) {
+                    Files.move(temp, entry(key), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            
+            if(grow(byteCode.length - replaced) > maxSize)
+                evict();
+        } catch(IOException ex) {
+            log(ex);
+        }
+    }
+    
+    // Add to the estimated size of the cache, it is only counted again when it seems full.
+    // The first time, the entries are counted instead, which already includes the change.
+    private synchronized long grow(long bytes) throws IOException {
+        if(size < 0) {
+            evict();
+            return size;
+        }
+        
+        return size += bytes;
+    }
+    
+    /** Delete the least recently used entries until the cache fits its size limit. */
+    public synchronized void evict() throws IOException {
+        List<Path> entries;
+        
+        try (Stream<Path> files = Files.list(dir)) {
+            entries = files.filter(f -> f.toString().endsWith(EXTENSION)).collect(Collectors.toList());
+        }
+        
+        size = 0;
+        HashMap<Path, FileTime> used = new HashMap();
+        
+        for(Path entry : entries) {
+            try {
+                size += Files.size(entry);
+                used.put(entry, Files.getLastModifiedTime(entry));
+            } catch(NoSuchFileException ex) {
+                // evicted meanwhile
+            }
+        }
+        
+        if(size <= maxSize)
+            return;
+        
+        entries = new ArrayList(used.keySet());
+        entries.sort(Comparator.comparing(used::get));
+        
+        for(Path entry : entries) {
+            if(size <= maxSize)
+                break;
+            
+            try {
+                size -= Files.size(entry);
+                Files.delete(entry);
+            } catch(NoSuchFileException ex) {
+                // evicted meanwhile
+            }
+        }
+    }
+    
+    private final Path dir;
+    private final long maxSize;
+    private long size = -1; // estimated total size of the entries, -1 until counted
+    
+    private static final String EXTENSION = ".casm";
+    
+    private Path entry(String key) {
+        return dir.resolve(key + EXTENSION);
+    }
+    
+    // the modification time of an entry is when it was last used
+    private static void touch(Path entry) {
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch(IOException ex) {
+            // evicted meanwhile, it was still read
+        }
+    }
+    
+    private static void log(IOException ex) {
+        Logger.getLogger(BuildCache.class.getName()).log(Level.WARNING, "Build cache failed", ex);
+    }
+}
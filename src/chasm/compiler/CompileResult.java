@@ -0,0 +1,63 @@
+package chasm.compiler;
+
+import chasm.instructions.InstructionList;
+
+/** Outcome of one compilation by the {@link ThreadedCompiler}. */
+public class CompileResult {
+    CompileResult(InstructionList program, Diagnostics diagnostics, int foldCount, int reusedCount) {
+        this.program = program;
+        this.diagnostics = diagnostics;
+        this.foldCount = foldCount;
+        this.reusedCount = reusedCount;
+    }
+    
+    /** @return the compiled program, empty if there were errors */
+    public InstructionList getProgram() {
+        return program;
+    }
+    
+    public Diagnostics getDiagnostics() {
+        return diagnostics;
+    }
+    
+    public boolean hasErrors() {
+        return diagnostics.hasErrors();
+    }
+    
+    /** @return how many operations were evaluated at compile time */
+    public int getFoldCount() {
+        return foldCount;
+    }
+    
+    /** @return how many top level statements were reused from the compilation before */
+    public int getReusedCount() {
+        return reusedCount;
+    }
+    
+    /**
+     * Optimize and encode the program. The program itself is left as it is.
+     * @return the bytecode, including the header, or null if there were errors
+     */
+    public byte[] toByteCode() {
+        if(hasErrors())
+            return null;
+        
+        InstructionList code = new InstructionList(program.size());
+        code.addAll(program);
+        
+        optimizerReport = new PeepholeOptimizer().optimize(code);
+        
+        return Assembler.encode(code);
+    }
+    
+    /** @return the report of the last optimizer run, or null if there was none */
+    public PeepholeOptimizer.Report getOptimizerReport() {
+        return optimizerReport;
+    }
+    
+    private final InstructionList program;
+    private final Diagnostics diagnostics;
+    private final int foldCount, reusedCount;
+    
+    private PeepholeOptimizer.Report optimizerReport = null;
+}
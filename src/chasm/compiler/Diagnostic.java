@@ -0,0 +1,56 @@
+package chasm.compiler;
+
+/** A problem found in the source code, with its location. */
+public class Diagnostic {
+    public enum Severity {
+        ERROR, WARNING
+    }
+    
+    public Diagnostic(Severity severity, int offset, int line, int column, String message, String context) {
+        this.severity = severity;
+        this.offset = offset;
+        this.line = line;
+        this.column = column;
+        this.message = message;
+        this.context = context;
+    }
+    
+    public Severity getSeverity() {
+        return severity;
+    }
+    
+    /** @return offset of the problem in the source, counted in chars */
+    public int getOffset() {
+        return offset;
+    }
+    
+    /** @return line of the problem, starting at 1 */
+    public int getLine() {
+        return line;
+    }
+    
+    /** @return column of the problem, starting at 1 */
+    public int getColumn() {
+        return column;
+    }
+    
+    public String getMessage() {
+        return message;
+    }
+    
+    @Override
+    public String toString() {
+        char lineEnd = 'a';
+        if(message.endsWith(".") || message.endsWith("!"))
+            lineEnd = 'A';
+        
+        return (severity == Severity.ERROR ? "Error: " : "Warning: ") + message
+                + " " + lineEnd + "t line " + line + ", column " + column + ".\n"
+                + context + "<- HERE";
+    }
+    
+    private final Severity severity;
+    private final int offset, line, column;
+    private final String message;
+    private final String context; // source line up to the problem
+}
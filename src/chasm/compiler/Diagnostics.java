@@ -0,0 +1,121 @@
+package chasm.compiler;
+
+import chasm.compiler.Diagnostic.Severity;
+import java.util.*;
+
+/**
+ * Collects the diagnostics of one compilation or assembly. Lines and columns are
+ * looked up in an index of line starts, which is only built once a problem is found.
+ */
+public class Diagnostics {
+    /** Most diagnostics kept, parsers give up after that many. */
+    public static final int MAX_DIAGNOSTICS = 100;
+    
+    public Diagnostics(CharSequence source) {
+        this.source = source;
+    }
+    
+    public Diagnostic error(int offset, String message) {
+        return add(Severity.ERROR, offset, message);
+    }
+    
+    public Diagnostic warning(int offset, String message) {
+        return add(Severity.WARNING, offset, message);
+    }
+    
+    public Diagnostic add(Severity severity, int offset, String message) {
+        offset = Math.max(0, Math.min(offset, source.length()));
+        
+        int line = lineOf(offset);
+        int lineStart = lineStarts[line];
+        
+        // context is the line up to and including the offending char
+        int contextEnd = Math.min(offset + 1, source.length());
+        while(contextEnd > lineStart && source.charAt(contextEnd - 1) == '\n')
+            contextEnd--;
+        
+        String context = source.subSequence(lineStart, contextEnd).toString().trim();
+        
+        Diagnostic d = new Diagnostic(severity, offset, line + 1, offset - lineStart + 1, message, context);
+        
+        if(diagnostics.size() < MAX_DIAGNOSTICS)
+            diagnostics.add(d);
+        
+        if(severity == Severity.ERROR)
+            errors++;
+        
+        return d;
+    }
+    
+    public List<Diagnostic> getAll() {
+        return Collections.unmodifiableList(diagnostics);
+    }
+    
+    public boolean hasErrors() {
+        return errors > 0;
+    }
+    
+    /** @return how many errors were found, including those past the limit */
+    public int getErrorCount() {
+        return errors;
+    }
+    
+    /** @return true once no more diagnostics can be kept */
+    public boolean isFull() {
+        return diagnostics.size() >= MAX_DIAGNOSTICS;
+    }
+    
+    public int size() {
+        return diagnostics.size();
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        
+        for(Diagnostic d : diagnostics)
+            sb.append(d).append('\n');
+        
+        return sb.toString();
+    }
+    
+    // Binary search for the line containing the offset, 0 based
+    private int lineOf(int offset) {
+        if(lineStarts == null)
+            indexLines();
+        
+        int lo = 0, hi = lineCount - 1;
+        while(lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            
+            if(lineStarts[mid] <= offset)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        
+        return lo;
+    }
+    
+    private void indexLines() {
+        lineStarts = new int[64];
+        lineStarts[0] = 0;
+        lineCount = 1;
+        
+        for(int i = 0; i < source.length(); i++) {
+            if(source.charAt(i) == '\n') {
+                if(lineCount == lineStarts.length)
+                    lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                
+                lineStarts[lineCount++] = i + 1;
+            }
+        }
+    }
+    
+    private final CharSequence source;
+    private final ArrayList<Diagnostic> diagnostics = new ArrayList();
+    private int errors = 0;
+    
+    private int[] lineStarts = null;
+    private int lineCount = 0;
+}
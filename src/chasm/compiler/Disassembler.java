@@ -0,0 +1,78 @@
+package chasm.compiler;
+
+import static chasm.MathUtils.bytesToShort;
+import chasm.instructions.InstructionList;
+
+public class Disassembler {
+    /** Size of the header in front of the code of a .casm file. */
+    public static final int HEADER_SIZE = 0x10;
+    
+    /**
+     * Decode bytecode into instructions, up to the end of the code or the first NOP.
+     * @param bytes bytecode to read
+     * @param start offset of the first instruction, usually {@link #HEADER_SIZE}
+     * @return the decoded instructions, or null if the bytecode is invalid
+     */
+    public static InstructionList read(byte[] bytes, int start) {
+        int curPos = start;
+        InstructionList instructions = new InstructionList((bytes.length - start) / 3);
+        
+        while(curPos < bytes.length) {
+            int opcode = Byte.toUnsignedInt(bytes[curPos]);
+            curPos++;
+            if(opcode == 0x00) // End program
+                break;
+            
+            if(opcode == InstructionList.SHORTCUT_LBL) // only exists in source code
+                return unknownInstruction(opcode, curPos - 1);
+            
+            long inst;
+            
+            try {
+                inst = InstructionList.pack(opcode);
+            } catch(IllegalArgumentException ex) {
+                return unknownInstruction(opcode, curPos - 1);
+            }
+            
+            if(curPos - 1 + InstructionList.encodedSize(inst) > bytes.length) {
+                System.err.println("Instruction at 0x" + Integer.toHexString(curPos - 1).toUpperCase()
+                        + " is cut off by the end of the file!");
+                return null;
+            }
+            
+            for(int i = 0; i < InstructionList.operandCount(inst); i++) {
+                if(InstructionList.isShort(inst, i)) { // if argument is 2 bytes long
+                    inst = InstructionList.withOperand(inst, i, bytesToShort(bytes[curPos], bytes[curPos + 1]));
+                    curPos += 2;
+                } else {
+                    inst = InstructionList.withOperand(inst, i, bytes[curPos]);
+                    curPos++;
+                }
+            }
+            
+            instructions.add(inst);
+        }
+        
+        return instructions;
+    }
+    
+    /**
+     * @param instructions decoded instructions
+     * @return ChASM source with the instructions in a casm block, as imported into the editor
+     */
+    public static String toSource(InstructionList instructions) {
+        StringBuilder sb = new StringBuilder(instructions.size() * 20 + 16).append("casm {\n");
+        
+        for(int i = 0; i < instructions.size(); i++)
+            sb.append("    ").append(InstructionList.toCode(instructions.get(i))).append('\n');
+        
+        return sb.append('}').toString();
+    }
+    
+    // report an opcode that cannot be decoded, read() gives up with the null returned
+    private static InstructionList unknownInstruction(int opcode, int address) {
+        System.err.println("Unknown instruction 0x" + Integer.toHexString(opcode).toUpperCase()
+                + "! At 0x" + Integer.toHexString(address).toUpperCase());
+        return null;
+    }
+}
@@ -0,0 +1,91 @@
+package chasm.compiler;
+
+import chasm.ChASM;
+import chasm.instructions.Instruction;
+
+/**
+ * Constant-time lookup of instructions by mnemonic. Names are packed into an int,
+ * 5 bits per character, so a lexer can build the key while it reads the name.
+ */
+public class MnemonicIndex {
+    /**
+     * Key of a name that cannot be packed, because it is too long or has characters
+     * other than A-Z and '_'. Never matches an instruction.
+     */
+    public static final int NO_KEY = -1;
+    
+    /** Key of the empty name. */
+    public static final int EMPTY_KEY = 0;
+    
+    private static final int MAX_LENGTH = 6; // 6 * 5 bits fit in an int
+    
+    /**
+     * Append a character to a packed name.
+     * @param key key of the name so far
+     * @param c uppercase letter or '_'
+     * @param length length of the name so far
+     * @return key of the name with {@code c} appended, {@link #NO_KEY} for any other character
+     */
+    public static int append(int key, char c, int length) {
+        if(key == NO_KEY || length >= MAX_LENGTH)
+            return NO_KEY;
+        
+        if(c == '_')
+            return (key << 5) | 27;
+        
+        if(c < 'A' || c > 'Z')
+            return NO_KEY;
+        
+        return (key << 5) | (c - 'A' + 1);
+    }
+    
+    /** Pack a whole uppercase name. */
+    public static int pack(CharSequence name) {
+        int key = EMPTY_KEY;
+        
+        for(int i = 0; i < name.length(); i++)
+            key = append(key, name.charAt(i), i);
+        
+        return key;
+    }
+    
+    /** @return the instruction with the given packed name, or null if there is none */
+    public static Instruction lookup(int key) {
+        if(key == NO_KEY || key == EMPTY_KEY)
+            return null;
+        
+        for(int slot = slotOf(key); keys[slot] != EMPTY_KEY; slot = (slot + 1) & MASK) {
+            if(keys[slot] == key)
+                return instructions[slot];
+        }
+        
+        return null;
+    }
+    
+    private static int slotOf(int key) {
+        return (key * 0x9E3779B9) >>> (32 - BITS);
+    }
+    
+    private static final int BITS = 6;
+    private static final int MASK = (1 << BITS) - 1;
+    
+    // open addressing table, at most half full
+    private static final int[] keys = new int[1 << BITS];
+    private static final Instruction[] instructions = new Instruction[1 << BITS];
+    
+    static {
+        for(Instruction inst : ChASM.INSTRUCTIONS_MAP.values()) {
+            int key = pack(inst.name);
+            int slot = slotOf(key);
+            
+            while(keys[slot] != EMPTY_KEY && keys[slot] != key)
+                slot = (slot + 1) & MASK;
+            
+            // the first instruction of a name wins, the shortcut LBL is never looked up
+            if(keys[slot] == EMPTY_KEY) {
+                keys[slot] = key;
+                instructions[slot] = inst;
+            }
+        }
+    }
+}
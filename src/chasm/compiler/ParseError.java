@@ -0,0 +1,13 @@
+package chasm.compiler;
+
+/**
+ * Thrown by the parsers after recording a diagnostic, to unwind to the next point
+ * where parsing can resume. Carries no stack trace, it is never shown.
+ */
+class ParseError extends RuntimeException {
+    ParseError() {
+        super(null, null, false, false);
+    }
+    
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,398 @@
+package chasm.compiler;
+
+import chasm.instructions.Instruction;
+import chasm.instructions.InstructionList;
+import static chasm.instructions.InstructionList.*;
+import java.util.*;
+
+/**
+ * Peephole optimizer, run over a program before it is encoded.
+ * <p>
+ * Every {@link Rule} rewrites short runs of straight-line code. The rules are applied
+ * over and over until none of them finds anything left to remove. Labels and jumps
+ * end a run, so the program's control flow is never changed. Programs with explicit
+ * {@code LBL(lId, #address)} instructions are left alone, since removing code would
+ * invalidate their hand-written addresses.
+ */
+public class PeepholeOptimizer {
+    /** Optimizer applying every rule. */
+    public PeepholeOptimizer() {
+        this(EnumSet.allOf(Rule.class));
+    }
+    
+    /** Optimizer applying only the given rules. */
+    public PeepholeOptimizer(Set<Rule> rules) {
+        this.rules = rules.toArray(new Rule[rules.size()]);
+    }
+    
+    /**
+     * Optimize a program in place.
+     * @param program instructions to optimize
+     * @return what the optimizer removed
+     */
+    public Report optimize(InstructionList program) {
+        Report report = new Report();
+        
+        int sizeBefore = program.size();
+        int bytesBefore = program.encodedSize();
+        
+        for(int i = 0; i < program.size(); i++) {
+            if(opcode(program.get(i)) == LBL) {
+                report.skipped = true;
+                return report;
+            }
+        }
+        
+        long[] code = program.toArray();
+        int size = code.length;
+        
+        // apply the rules until a fixpoint is reached, every change shrinks the code
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            report.passes++;
+            
+            for(Rule rule : rules) {
+                if(rule.apply(code, size) > 0) {
+                    size = compact(code, size);
+                    changed = true;
+                }
+            }
+        }
+        
+        program.clear();
+        program.addAll(code, 0, size);
+        
+        report.instructionsRemoved = sizeBefore - program.size();
+        report.bytesRemoved = bytesBefore - program.encodedSize();
+        
+        return report;
+    }
+    
+    private final Rule[] rules;
+    
+    /** Statistics of one optimizer run. */
+    public static class Report {
+        public int instructionsRemoved = 0;
+        public int bytesRemoved = 0;
+        public int passes = 0;
+        
+        /** True if the program has explicit LBL addresses and was not optimized. */
+        public boolean skipped = false;
+        
+        @Override
+        public String toString() {
+            if(skipped)
+                return "Peephole optimizer skipped: program contains explicit LBL addresses.";
+            
+            return "Peephole optimizer removed " + instructionsRemoved + " instruction"
+                    + (instructionsRemoved != 1 ? "s" : "") + " (" + bytesRemoved + " bytes) in "
+                    + passes + " pass" + (passes != 1 ? "es." : ".");
+        }
+    }
+    
+    /** Rewrite rules. Each one marks the instructions it removes as {@link #DELETED}. */
+    public enum Rule {
+        /** {@code PSH(rA)} followed by a single {@code SP+} read: read rA directly instead. */
+        STACK_FORWARDING {
+            @Override
+            int apply(long[] code, int size) {
+                int removed = 0;
+                
+                for(int i = 0; i < size; i++) {
+                    if(opcode(code[i]) != PSH || operand(code[i], 0) == SP)
+                        continue;
+                    
+                    int reg = operand(code[i], 0);
+                    
+                    for(int j = i + 1; j < size && j <= i + WINDOW; j++) {
+                        long inst = code[j];
+                        
+                        if(inst == DELETED)
+                            continue;
+                        
+                        if(isBarrier(inst) || pushes(inst))
+                            break;
+                        
+                        int pops = pops(inst);
+                        
+                        if(pops == 1) {
+                            code[j] = replaceRead(inst, SP, reg);
+                            code[i] = DELETED;
+                            removed++;
+                        }
+                        
+                        if(pops > 0 || writes(inst, reg))
+                            break;
+                    }
+                }
+                
+                return removed;
+            }
+        },
+        
+        /** {@code MOV(rA, #n)} when rA is already known to hold n. */
+        KNOWN_CONSTANT {
+            @Override
+            int apply(long[] code, int size) {
+                int removed = 0;
+                int[] known = new int[8];
+                Arrays.fill(known, -1);
+                
+                for(int i = 0; i < size; i++) {
+                    long inst = code[i];
+                    
+                    if(inst == DELETED)
+                        continue;
+                    
+                    if(opcode(inst) == SHORTCUT_LBL) { // control can arrive from elsewhere
+                        Arrays.fill(known, -1);
+                        continue;
+                    }
+                    
+                    if(opcode(inst) == MOV && operand(inst, 0) < known.length) {
+                        int reg = operand(inst, 0);
+                        
+                        if(known[reg] == operand(inst, 1)) {
+                            code[i] = DELETED;
+                            removed++;
+                        }
+                        
+                        known[reg] = operand(inst, 1);
+                        continue;
+                    }
+                    
+                    for(int reg = 0; reg < known.length; reg++) {
+                        if(writes(inst, reg))
+                            known[reg] = -1;
+                    }
+                }
+                
+                return removed;
+            }
+        },
+        
+        /** {@code RTR(rA, rA)}. */
+        SELF_MOVE {
+            @Override
+            int apply(long[] code, int size) {
+                int removed = 0;
+                
+                for(int i = 0; i < size; i++) {
+                    if(opcode(code[i]) == RTR && operand(code[i], 0) == operand(code[i], 1)
+                            && operand(code[i], 0) != SP) {
+                        code[i] = DELETED;
+                        removed++;
+                    }
+                }
+                
+                return removed;
+            }
+        },
+        
+        /** A side effect free register write that is overwritten before it is read. */
+        DEAD_WRITE {
+            @Override
+            int apply(long[] code, int size) {
+                int removed = 0;
+                
+                for(int i = 0; i < size; i++) {
+                    long inst = code[i];
+                    int op = opcode(inst);
+                    
+                    if(!(op == MOV || op == RTR || op == MTR || op == VTR || op == FTR) || pops(inst) > 0)
+                        continue;
+                    
+                    int reg = written(inst);
+                    
+                    if(reg == -1 || reg == SP)
+                        continue;
+                    
+                    for(int j = i + 1; j < size && j <= i + WINDOW; j++) {
+                        long next = code[j];
+                        
+                        if(next == DELETED)
+                            continue;
+                        
+                        if(isBarrier(next) || reads(next, reg))
+                            break;
+                        
+                        if(writes(next, reg)) {
+                            code[i] = DELETED;
+                            removed++;
+                            break;
+                        }
+                    }
+                }
+                
+                return removed;
+            }
+        },
+        
+        /** {@code RTV(rA, vN)} then {@code VTR(vN, rA)}, or the same through memory. */
+        STORE_LOAD {
+            @Override
+            int apply(long[] code, int size) {
+                int removed = 0;
+                
+                for(int i = 0; i + 1 < size; i++) {
+                    long store = code[i];
+                    long load = code[i + 1];
+                    
+                    boolean variable = opcode(store) == RTV && opcode(load) == VTR;
+                    boolean memory = opcode(store) == RTM && opcode(load) == MTR;
+                    
+                    if((variable || memory)
+                            && operand(store, 0) == operand(load, 1) && operand(store, 1) == operand(load, 0)
+                            && operand(store, 0) != SP) {
+                        code[i + 1] = DELETED;
+                        removed++;
+                    }
+                }
+                
+                return removed;
+            }
+        },
+        
+        /** {@code JMP(lX)} to a label that directly follows it. */
+        JUMP_TO_NEXT {
+            @Override
+            int apply(long[] code, int size) {
+                int removed = 0;
+                
+                for(int i = 0; i < size; i++) {
+                    if(opcode(code[i]) != JMP)
+                        continue;
+                    
+                    for(int j = i + 1; j < size && opcode(code[j]) == SHORTCUT_LBL; j++) {
+                        if(operand(code[j], 0) == operand(code[i], 0)) {
+                            code[i] = DELETED;
+                            removed++;
+                            break;
+                        }
+                    }
+                }
+                
+                return removed;
+            }
+        };
+        
+        /**
+         * Apply the rule to the code.
+         * @return the number of instructions marked as deleted
+         */
+        abstract int apply(long[] code, int size);
+    }
+    
+    /** Marks a removed instruction until the code is compacted. 0xFE is not a valid opcode. */
+    static final long DELETED = 0xFEL;
+    
+    /** How far ahead the rules look for a matching instruction. */
+    private static final int WINDOW = 8;
+    
+    private static final int LBL = 0x06, JMP = 0x07, JIF = 0x08, MOV = 0x09, PSH = 0x0A,
+            RTR = 0x0B, MTR = 0x0C, RTM = 0x0D, VTR = 0x0F, RTV = 0x10, FTR = 0x11;
+    
+    private static int compact(long[] code, int size) {
+        int w = 0;
+        
+        for(int r = 0; r < size; r++) {
+            if(code[r] != DELETED)
+                code[w++] = code[r];
+        }
+        
+        return w;
+    }
+    
+    /** True for labels, jumps and the end of the program. */
+    private static boolean isBarrier(long inst) {
+        int op = opcode(inst);
+        return op == LBL || op == SHORTCUT_LBL || op == JMP || op == JIF || op == 0x00;
+    }
+    
+    private static boolean reads(long inst, int reg) {
+        boolean[] r = READS[opcode(inst)];
+        
+        for(int i = 0; i < r.length; i++) {
+            if(r[i] && operand(inst, i) == reg)
+                return true;
+        }
+        
+        return false;
+    }
+    
+    private static boolean writes(long inst, int reg) {
+        boolean[] w = WRITES[opcode(inst)];
+        
+        for(int i = 0; i < w.length; i++) {
+            if(w[i] && operand(inst, i) == reg)
+                return true;
+        }
+        
+        return false;
+    }
+    
+    /** @return the register the instruction writes, or -1 */
+    private static int written(long inst) {
+        boolean[] w = WRITES[opcode(inst)];
+        
+        for(int i = 0; i < w.length; i++) {
+            if(w[i])
+                return operand(inst, i);
+        }
+        
+        return -1;
+    }
+    
+    /** @return how many values the instruction pops off the stack */
+    private static int pops(long inst) {
+        boolean[] r = READS[opcode(inst)];
+        int pops = 0;
+        
+        for(int i = 0; i < r.length; i++) {
+            if(r[i] && operand(inst, i) == SP)
+                pops++;
+        }
+        
+        return pops;
+    }
+    
+    private static boolean pushes(long inst) {
+        return opcode(inst) == PSH || writes(inst, SP);
+    }
+    
+    private static long replaceRead(long inst, int from, int to) {
+        boolean[] r = READS[opcode(inst)];
+        
+        for(int i = 0; i < r.length; i++) {
+            if(r[i] && operand(inst, i) == from)
+                return withOperand(inst, i, to);
+        }
+        
+        return inst;
+    }
+    
+    // which operands of every opcode are read or written registers
+    private static final boolean[][] READS = new boolean[256][];
+    private static final boolean[][] WRITES = new boolean[256][];
+    
+    static {
+        Arrays.fill(READS, new boolean[0]);
+        Arrays.fill(WRITES, new boolean[0]);
+        
+        for(Instruction ref : chasm.ChASM.INSTRUCTIONS_MAP.values()) {
+            int op = ref.id & 0xFF;
+            
+            READS[op] = new boolean[ref.nargs];
+            WRITES[op] = new boolean[ref.nargs];
+            
+            for(int i = 0; i < ref.nargs; i++) {
+                String name = ref.args[i].getName();
+                boolean written = name.equals("rOut") || name.equals("rTo");
+                
+                READS[op][i] = name.startsWith("r") && !written;
+                WRITES[op][i] = written;
+            }
+        }
+    }
+}
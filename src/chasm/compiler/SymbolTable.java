@@ -0,0 +1,100 @@
+package chasm.compiler;
+
+import java.util.*;
+
+/**
+ * Variables of the {@link ThreadedCompiler}, by name. Every block opens a scope, and the
+ * variables declared in it are dropped when it closes. Slots are handed out like a stack,
+ * so the slots of a closed scope are reused by the variables declared after it. A reused
+ * slot still holds the value of the dead variable, see {@link #getHighWater()}.
+ */
+class SymbolTable {
+    /** Variable slots of the target, v0 - v255. */
+    static final int MAX_SLOTS = 256;
+    
+    void clear() {
+        slots.clear();
+        declared.clear();
+        depth = 0;
+        highWater = 0;
+    }
+    
+    void pushScope() {
+        if(depth == scopeStarts.length)
+            scopeStarts = Arrays.copyOf(scopeStarts, depth * 2);
+        
+        scopeStarts[depth] = declared.size();
+        depth++;
+    }
+    
+    void popScope() {
+        depth--;
+        
+        for(int slot = declared.size() - 1; slot >= scopeStarts[depth]; slot--)
+            slots.remove(declared.remove(slot));
+    }
+    
+    /**
+     * Declare a variable in the innermost scope.
+     * @return its slot
+     */
+    int declare(String name) {
+        int slot = declared.size();
+        
+        slots.put(name, slot);
+        declared.add(name);
+        highWater = Math.max(highWater, slot + 1);
+        
+        return slot;
+    }
+    
+    /** @return the slot of a visible variable, or -1 */
+    int lookup(String name) {
+        Integer slot = slots.get(name);
+        return slot != null ? slot : -1;
+    }
+    
+    boolean contains(String name) {
+        return slots.containsKey(name);
+    }
+    
+    /** @return how many variables are visible, which is also the next free slot */
+    int size() {
+        return declared.size();
+    }
+    
+    /** @return the variables in the slots from {@code first} on, in slot order */
+    List<String> namesFrom(int first) {
+        return declared.subList(first, declared.size());
+    }
+    
+    /** @return how many slots were ever used, the slots below it may hold an old value */
+    int getHighWater() {
+        return highWater;
+    }
+    
+    /** Mark the slots below {@code slots} as used, for variables declared without {@link #declare}. */
+    void raiseHighWater(int slots) {
+        highWater = Math.max(highWater, slots);
+    }
+    
+    /** @return true if exactly these variables are visible, in slot order */
+    boolean matches(String[] names) {
+        if(names.length != declared.size())
+            return false;
+        
+        for(int slot = 0; slot < names.length; slot++) {
+            if(!names[slot].equals(declared.get(slot)))
+                return false;
+        }
+        
+        return true;
+    }
+    
+    private final HashMap<String, Integer> slots = new HashMap();
+    private final ArrayList<String> declared = new ArrayList(); // by slot
+    
+    private int[] scopeStarts = new int[16]; // for every open scope, the first slot it declared
+    private int depth = 0;
+    private int highWater = 0;
+}
@@ -1,94 +1,267 @@
 package chasm.compiler;
 
+import chasm.instructions.InstructionList;
+import static chasm.instructions.InstructionList.*;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 // huge thanks to Jack Crenshaws's "Let's Build a Compiler" series, which this is heavily based on.
 public class ThreadedCompiler {
-
+    /** Version of the generated code. Change it whenever the output changes, so cached builds are not reused. */
+    public static final String VERSION = "3";
+    
     private char look, token;
+    private String value; // variable name read by getToken()
     private int index = 0;
     
     private int labelCount = 0;
+    private int foldCount = 0;
+    
+    private Diagnostics diagnostics = new Diagnostics("");
+    private int lastErrorIndex = -1;
     
     private String text;
-    private String finalAsm = "";
-    Thread compThread;
+    private InstructionList program = new InstructionList();
+    private Appendable listing = null;
+    
+    // every compilation runs on this thread, one at a time
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ChASM-WorkThread");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private CompletableFuture<CompileResult> pending = null; // newest compilation requested
+    private CompletableFuture<?> job = null;                 // compilation running on the worker
+    private volatile boolean reporting = true;
+    private final Object compileLock = new Object(); // held while compiling, compile() never waits for it
+    private volatile CompileResult result = null;            // last finished compilation
+    
+    // completes futures that run out of time
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ChASM-Timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private static final String[] KEYWORDS = { "IF", "ELSE", "WHILE", "VAR", "{", "}", "CASM" };
+    private static final String KEYWORD_TOKENS = "ilwvbec";
+    
+    // token of every keyword, so names are told apart from variables in one lookup
+    private static final HashMap<String, Character> KEYWORD_MAP = new HashMap();
     
-    public final ArrayList<String> keywords = new ArrayList(Arrays.asList("IF", "ELSE", "WHILE",
-                                                                    "VAR", "{", "}", "CASM"));
-    private final String keywordTokens = "ilwvbec";
+    static {
+        for(int i = 0; i < KEYWORDS.length; i++)
+            KEYWORD_MAP.put(KEYWORDS[i], KEYWORD_TOKENS.charAt(i));
+    }
+    
+    public final ArrayList<String> keywords = new ArrayList(Arrays.asList(KEYWORDS));
     
-    private final ArrayList<String> varTable = new ArrayList();
+    private final SymbolTable symbols = new SymbolTable();
     
-    public void compile(String code) {
-        if(compThread != null && compThread.isAlive())
-            compThread.stop();
+    // Results of the top level statements of the last compilation, by their offset in
+    // its text. Statements that did not change are reused instead of compiled again.
+    private String cachedText = "";
+    private HashMap<Integer, CachedStatement> cache = new HashMap();
+    private HashMap<Integer, CachedStatement> nextCache = new HashMap();
+    private String[] scope = new String[0]; // visible variables, see scope()
+    private int reusedCount = 0;
+    
+    /**
+     * Compile the code on the compiler's worker thread. The newest request wins: a
+     * compilation that is still queued or running when another one is requested is
+     * cancelled, and its future completes with a {@link CancellationException}.
+     * Cancelling the returned future also stops the compilation.
+     * @param code ChASM source code
+     * @return a future completing with the result, on the worker thread
+     */
+    public synchronized CompletableFuture<CompileResult> compile(String code) {
+        CompletableFuture<CompileResult> future = new CompletableFuture();
+        
+        if(pending != null)
+            pending.cancel(false); // superseded
+        
+        pending = future;
+        
+        worker.execute(() -> {
+            if(future.isDone()) // dropped before it started
+                return;
+            
+            try {
+                future.complete(compileOnCurrentThread(code, future));
+            } catch(CancellationException ex) {
+                future.cancel(false);
+            } catch(RuntimeException | Error ex) {
+                future.completeExceptionally(ex);
+            }
+        });
         
-        compThread = new Thread(() -> {
-            compileOnCurrentThread(code);
-        }, "ChASM-WorkThread");
+        return future;
+    }
+    
+    /**
+     * Compile the code on the calling thread, waiting for any compilation in progress
+     * first. Separate compilers can compile on any number of threads at once.
+     */
+    public CompileResult compileOnCallingThread(String code) {
+        return compileOnCurrentThread(code, null);
+    }
+    
+    /**
+     * Compile the code on the worker thread and wait for the result.
+     * @throws CancellationException if a newer compilation was requested meanwhile
+     */
+    public CompileResult compileAndWait(String code) {
+        return compile(code).join();
+    }
+    
+    /**
+     * Compile and encode the code on the worker thread.
+     * @param code ChASM source code
+     * @return a future completing with the bytecode, or with null if the code has errors
+     */
+    public CompletableFuture<byte[]> assembleAsync(String code) {
+        return assembleAsync(code, 0, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Compile and encode the code on the worker thread, giving up after a timeout.
+     * @param code ChASM source code
+     * @param timeout how long the compilation may take, 0 for no limit
+     * @param unit unit of the timeout
+     * @return a future completing with the bytecode, or with null if the code has errors.
+     *         It completes with a {@link TimeoutException} if the compilation took too
+     *         long, and with a {@link CancellationException} if a newer one replaced it.
+     */
+    public CompletableFuture<byte[]> assembleAsync(String code, long timeout, TimeUnit unit) {
+        CompletableFuture<CompileResult> compilation = compile(code);
+        
+        if(timeout > 0) {
+            // failing the compilation's future also stops it, like a cancellation
+            ScheduledFuture<?> timer = TIMER.schedule(() -> compilation.completeExceptionally(
+                    new TimeoutException("Compilation took too long!")), timeout, unit);
+            
+            compilation.whenComplete((r, ex) -> timer.cancel(false));
+        }
         
-        compThread.start();
+        return compilation.thenApply(compiled -> {
+            byte[] byteCode = compiled.toByteCode();
+            
+            if(byteCode != null && reporting)
+                System.out.println(compiled.getOptimizerReport());
+            
+            return byteCode;
+        });
     }
     
-    public boolean compiling() {
-        if(compThread == null)
-            return false;
-        else
-            return compThread.isAlive();
+    public synchronized boolean compiling() {
+        return pending != null && !pending.isDone();
+    }
+    
+    /** @return the last finished compilation, or null if there was none */
+    public CompileResult getResult() {
+        return result;
+    }
+    
+    // Stop the compilation if it was cancelled or superseded. Checked between
+    // statements and every few thousand characters.
+    private void checkCancelled() {
+        if(job != null && job.isDone())
+            throw new CancellationException();
     }
     
-    private void compileOnCurrentThread(String code) {
+    /**
+     * Print the diagnostics after every compilation, and the optimizer report after
+     * encoding. On by default, callers reporting the {@link CompileResult} themselves
+     * can turn it off.
+     */
+    public void setReporting(boolean reporting) {
+        this.reporting = reporting;
+    }
+    
+    private CompileResult compileOnCurrentThread(String code, CompletableFuture<?> job) {
+        synchronized(compileLock) {
+            this.job = job;
+            
+            try {
+                return compileProgram(code);
+            } finally {
+                this.job = null;
+            }
+        }
+    }
+    
+    private CompileResult compileProgram(String code) {
         // Set vars to starting values
         text = prepareForParsing(code);
         index = 0;
         look = token = ' ';
-        varTable.clear();
+        symbols.clear();
         labelCount = 0;
-        finalAsm = "";
+        foldCount = 0;
+        program = new InstructionList(program.size());
+        diagnostics = new Diagnostics(code); // comments are blanked, so offsets match the source
+        lastErrorIndex = -1;
+        nextCache = new HashMap();
+        reusedCount = 0;
         
         prog();
+        flushListing();
         
-        if(token != 'p')
-            expected("end of program");
-
-        System.out.println(finalAsm);
+        cachedText = text;
+        cache = nextCache;
+        
+        if(diagnostics.hasErrors())
+            program.clear();
+        
+        if(reporting && diagnostics.hasErrors())
+            System.err.print(diagnostics);
+        
+        return result = new CompileResult(program, diagnostics, foldCount, reusedCount);
+    }
+    
+    /**
+     * Also write the generated code as CASM text, with comments explaining it. The
+     * listing is written while compiling and flushed after every top level statement,
+     * so it is never held in memory. It stops at the first error.
+     * @param listing where to write the listing, or null for none (the default)
+     */
+    public void setListing(Appendable listing) {
+        this.listing = listing;
     }
     
+    /**
+     * Encode the last compilation, without waiting for one in progress.
+     * @return the bytecode, or null if the compiler is busy or the code has errors
+     */
     public byte[] assemble() {
-        if(compThread.isAlive()) {
+        CompileResult last = result;
+        
+        if(compiling() || last == null || last.hasErrors()) {
             return null;
         }
         
-        Assembler.assemble(finalAsm);
+        byte[] byteCode = last.toByteCode();
         
-        long t = System.currentTimeMillis();
-        while(Assembler.assembling()) {
-//            if(System.currentTimeMillis() - t > 10000) {
-//                Assembler.error("Assembler took too long! Aborting...");
-//                return null;
-//            }
-        }
+        if(reporting)
+            System.out.println(last.getOptimizerReport());
         
-        return Assembler.getByteCode();
+        return byteCode;
     }
     
     private void getToken() {
         skipWhite();
         
         if(isLetter(look)) {
-            int pastIndex = index;
-            
             String s = getName();
+            Character keyword = KEYWORD_MAP.get(s);
             
-            if(keywords.contains(s)) {
-                token = keywordTokens.charAt(keywords.indexOf(s));
-            } else if(varTable.contains(s)) {
+            if(keyword != null) {
+                token = keyword;
+            } else if(symbols.contains(s)) {
                 token = 'a';
-                
-                // move index back so the assignment routine can get the var name
-                index = pastIndex - 1;
-                getChar();
+                value = s; // for the assignment routine
             } else {
                 encountered("token or variable name", s);
             }
@@ -106,9 +279,54 @@ public class ThreadedCompiler {
         }
     }
     
-    // Print a CASM line into the final composition
+    // Emit an instruction into the program
+    private void emit(long inst) {
+        emit(inst, null);
+    }
+    
+    // Emit an instruction into the program, with a comment for the listing
+    private void emit(long inst, String comment) {
+        program.add(inst);
+        
+        if(listing != null)
+            print(InstructionList.toCode(inst) + (comment != null ? " // " + comment : ""));
+    }
+    
+    // Write a comment into the listing
+    private void comment(String s) {
+        if(listing != null)
+            print("// " + s);
+    }
+    
+    // Print a CASM line into the listing
     private void print(String s) {
-        finalAsm += s + "\n";
+        write(s + "\n");
+    }
+    
+    private void write(String s) {
+        if(listing == null || diagnostics.hasErrors()) // code after an error is meaningless
+            return;
+        
+        try {
+            listing.append(s);
+        } catch(IOException ex) {
+            listingFailed(ex);
+        }
+    }
+    
+    private void flushListing() {
+        if(listing instanceof Flushable) {
+            try {
+                ((Flushable) listing).flush();
+            } catch(IOException ex) {
+                listingFailed(ex);
+            }
+        }
+    }
+    
+    private void listingFailed(IOException ex) {
+        System.err.println("Error: Could not write the listing: " + ex.getMessage());
+        listing = null;
     }
     
     private boolean charsLeft() {
@@ -121,28 +339,31 @@ public class ThreadedCompiler {
             error("Reached end of document unexpectedly.");
         else
             look = text.charAt(index++);
+        
+        if((index & 0xFFF) == 0)
+            checkCancelled();
     }
     
-    // Parse and Translate a Boolean Expression
-    private void boolExpression() {
-        boolTerm();
+    // Parse a Boolean Expression
+    private Node boolExpression() {
+        Node node = boolTerm();
         while(isOrOp(look)) {
-            print("PSH(r0)");
             switch(look) {
                 case '|':
-                    boolOr();
+                    node = boolOr(node);
                     break;
                 case '~':
-                    boolXor();
+                    node = boolXor(node);
             }
         }
+        
+        return node;
     }
     
-    // Report an error
+    // Report an error at the current character and unwind to the next statement
     public void error(String error) {
-        System.err.println("Error: " + error);
-        finalAsm = "";
-        compThread.stop();
+        diagnostics.error(index - 1, error);
+        throw new ParseError();
     }
     
     // Called when something was expected but not found
@@ -154,34 +375,43 @@ public class ThreadedCompiler {
         errorAtLine("Encountered unknown " + expectedType + ": " + found);
     }
     
+    // Report an error at the last thing read and unwind to the next statement
     private void errorAtLine(String e) {
-        char lineEnd = 'a';
-        if(e.endsWith(".") || e.endsWith("!"))
-            lineEnd = 'A';
+        int pos = Math.max(index - 2, 0);
         
-        if(index > 1) {
-            look = text.charAt(index -= 2);
-
-            // un-skipWhite()
-            while(look == ' ' || look == '\n')
-                look = text.charAt(--index);
-
-            int lineNum = 1;
-            int lastNewLine = 0;
-
-            String s = text.substring(0, index + 1);
-            for(int i = 0; i < s.length(); i++) {
-                if(s.charAt(i) == '\n') {
-                    lastNewLine = i;
-                    lineNum++;
-                }
-            }
+        // un-skipWhite()
+        while(pos > 0 && isWhite(text.charAt(pos)))
+            pos--;
+        
+        diagnostics.error(pos, e);
+        throw new ParseError();
+    }
+    
+    /**
+     * Skip the rest of a broken statement, up to the end of its line or the '}' closing
+     * the block it is in. Blocks opened on the way are skipped whole.
+     * @return false if parsing should stop instead
+     */
+    private boolean synchronize() {
+        if(diagnostics.isFull() || !charsLeft())
+            return false;
+        
+        if(index == lastErrorIndex) // no progress since the last error
+            getChar();
+        
+        lastErrorIndex = index;
+        
+        int depth = 0;
+        while(charsLeft() && !(depth == 0 && (look == '\n' || look == '}'))) {
+            if(look == '{')
+                depth++;
+            else if(look == '}')
+                depth--;
             
-            error(e + " " + lineEnd + "t line " + lineNum + ".\n"
-                + text.substring(lastNewLine, index + 1).trim() + "<- HERE");
-        } else {
-            error(e + " " + lineEnd + "t line 1.");
+            getChar();
         }
+        
+        return charsLeft();
     }
     
     // True when c == '+' or '-'
@@ -233,9 +463,14 @@ public class ThreadedCompiler {
         skipWhite();
     }
     
+    // True when c is whitespace
+    private boolean isWhite(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+    
     // Skip Whitespace
     private void skipWhite() {
-        while(charsLeft() && (look == ' ' || look == '\t' || look == '\n'))
+        while(charsLeft() && isWhite(look))
             getChar();
     }
     
@@ -278,266 +513,582 @@ public class ThreadedCompiler {
         return Integer.parseInt(value);
     }
     
-    // Parse and Translate an Identifier
-    private void identify(boolean var) {
+    // Parse an Identifier
+    private Node identify(boolean var) {
         String name = getName();
         if(look == '(') {
             match('(');
             match(')');
-            print("// TODO call function: " + name);
+            return Node.leaf('f', 0, name);
         } else if(var) {
-            if(!varTable.contains(name))
+            int slot = symbols.lookup(name);
+            
+            if(slot == -1)
                 errorAtLine("Variable " + name + " not initialized!");
             
-            print("VTR(v" + indexOf(name) + ", r0) // Variable " + name);
+            return Node.leaf('v', slot, name);
         } else {
             expected("variable name or function call");
+            return null;
         }
     }
     
-    // Parse and Translate a Boolean Factor with NOT
-    private void notFactor() {
+    // Parse a Boolean Factor with NOT
+    private Node notFactor() {
         skipWhite();
         if(look == '!') {
             match('!');
-            relation();
-            print("MOV(r1, b255)");
-            print("XOR(r1, r0, r0)"); // XOR r0 with 0xFF
+            return not(relation());
         } else
-            relation();
+            return relation();
     }
     
-    // Parse and Translate a Relation
-    private void relation() {
-        expression();
+    // Parse a Relation
+    private Node relation() {
+        Node node = expression();
         if(isRelOp(look)) {
-            print("PSH(r0)");
             switch(look) {
                 case '=':
-                    equals();
+                    node = equals(node);
                     break;
                 case '!':
-                    notEquals();
+                    node = notEquals(node);
                     break;
                 case '<':
-                    less();
+                    node = less(node);
                     break;
                 case '>':
-                    greater();
+                    node = greater(node);
             }
         }
+        
+        return node;
     }
     
-    // Recognize and Translate a Relational "Equal"
-    private void equals() {
+    // Recognize a Relational "Equal"
+    private Node equals(Node left) {
         match("==");
-        expression();
-        print("CMP(SP+, r0)");
-        
-        print("// Test EQUAL flag");
-        print("FTR(r0)");
-        print("AND(r0, #1, r0)");
+        return comparison(left, expression(), 1, "EQUAL");
     }
     
-    // Recognize and Translate a Relational "Not Equal"
-    private void notEquals() {
+    // Recognize a Relational "Not Equal"
+    private Node notEquals(Node left) {
         match("!=");
-        expression();
-        print("CMP(SP+, r0)");
-        
-        print("// Test NOT_EQUAL flag");
-        print("FTR(r0)");
-        print("AND(r0, #32, r0)");
+        return comparison(left, expression(), 32, "NOT_EQUAL");
     }
     
-    // Recognize and Translate a Relational "Less Than"
-    private void less() {
+    // Recognize a Relational "Less Than"
+    private Node less(Node left) {
         match('<');
         
         if(look == '=') { // less or equal
             match('=');
-            expression();
-            print("CMP(SP+, r0)");
-            
-            print("// Test LESS_EQUAL flag");
-            print("FTR(r0)");
-            print("AND(r0, #16, r0)");
+            return comparison(left, expression(), 16, "LESS_EQUAL");
         } else { // less than
-            expression();
-            print("CMP(SP+, r0)");
-            
-            print("// Test LESS flag");
-            print("FTR(r0)");
-            print("AND(r0, #8, r0)");
+            return comparison(left, expression(), 8, "LESS");
         }
     }
 
-    // Recognize and Translate a Relational "Greater Than"
-    private void greater() {
+    // Recognize a Relational "Greater Than"
+    private Node greater(Node left) {
         match('>');
 
         if(look == '=') { // greater or equal
             match('=');
-            expression();
-            print("CMP(SP+, r0)");
-            
-            print("// Test GREATER_EQUAL flag");
-            print("FTR(r0)");
-            print("AND(r0, #4, r0)");
+            return comparison(left, expression(), 4, "GREATER_EQUAL");
         } else { // greater
-            expression();
-            print("CMP(SP+, r0)");
-            
-            print("// Test GREATER flag");
-            print("FTR(r0)");
-            print("AND(r0, #2, r0)");
+            return comparison(left, expression(), 2, "GREATER");
         }
     }
     
-    // Parse and Translate a Math Factor
-    private void factor() {
+    // Parse a Math Factor
+    private Node factor() {
         skipWhite();
         
         if(look == '(') {
             match('(');
-            boolExpression();
+            Node node = boolExpression();
             match(')');
+            return node;
         } else if(isLetter(look))
-            identify(true);
-        else
-            print("MOV(r0, #" + getNum() + ")");
+            return identify(true);
+        else {
+            int value = getNum();
+            
+            if(value > 0xFF)
+                errorAtLine("Expected byte value within 0 and 255.");
+            
+            return Node.leaf('n', value, null);
+        }
     }
     
-    // Recognize and Translate a Multiply
-    private void multiply() {
+    // Recognize a Multiply
+    private Node multiply(Node left) {
         match('*');
-        factor();
-        print("MUL(SP+, r0, r0)");
+        return binary('*', left, factor());
     }
     
-    // Recognize and Translate a Divide
-    private void divide() {
+    // Recognize a Divide
+    private Node divide(Node left) {
         match('/');
-        factor();
-        print("DIV(SP+, r0, r0)");
+        Node node = binary('/', left, factor());
+        
+        if(node.op == '/' && is(node.right, 0))
+            errorAtLine("Division by zero.");
+        else if(node.op == '/')
+            errorAtLine("Division is only supported between constants.");
+        
+        return node;
     }
     
-    // Parse and Translate a Boolean Term
-    private void boolTerm() {
-        notFactor();
+    // Parse a Boolean Term
+    private Node boolTerm() {
+        Node node = notFactor();
         while(look == '&') {
-            print("PSH(r0)");
             match('&');
-            notFactor();
-            print("AND(SP+, r0, r0)");
+            node = binary('&', node, notFactor());
         }
+        
+        return node;
     }
     
-    // Parse and Translate a Math Term
-    private void term() {
-        factor();
+    // Parse a Math Term
+    private Node term() {
+        Node node = factor();
 
         while(look == '*'  || look == '/') {
-            print("PSH(r0)");
-            
             if(look == '*')
-                multiply();
+                node = multiply(node);
             else
-                divide();
+                node = divide(node);
         }
+        
+        return node;
     }
     
-    // Recognize and Translate an Add
-    private void add() {
+    // Recognize an Add
+    private Node add(Node left) {
         match('+');
-        term();
-        print("ADD(SP+, r0, r0)");
+        return binary('+', left, term());
     }
     
-    // Recognize and Translate a Subtract
-    private void subtract() {
+    // Recognize a Subtract
+    private Node subtract(Node left) {
         match('-');
-        term();
-        print("SUB(r0, SP+, r0)"); // sub top of stack from primary reg
+        return binary('-', left, term());
     }
     
-    // Parse and Translate a Boolean OR
-    private void boolOr() {
+    // Parse a Boolean OR
+    private Node boolOr(Node left) {
         match('|');
-        boolTerm();
-        print("OR(SP+, r0, r0)");
+        return binary('|', left, boolTerm());
     }
     
-    // Parse and Translate a Boolean XOR
-    private void boolXor() {
+    // Parse a Boolean XOR
+    private Node boolXor(Node left) {
         match('~');
-        boolTerm();
-        print("XOR(SP+, r0, r0)");
+        return binary('~', left, boolTerm());
     }
     
-    // Parse and Translate an Expression
-    private void expression() {
+    // Parse an Expression
+    private Node expression() {
         skipWhite();
         
+        Node node;
         if(isAddOp(look))
-            print("MOV(r0, b0)");
+            node = Node.leaf('n', 0, null);
         else
-            term();
+            node = term();
         
         while(isAddOp(look)) {
-            print("PSH(r0)");
             switch(look) {
                 case '+':
-                    add();
+                    node = add(node);
                     break;
                 case '-':
-                    subtract();
+                    node = subtract(node);
                     break;
             }
         }
+        
+        return node;
     }
-
+    
+    // Build a binary operation, evaluated at compile time if possible
+    private Node binary(char op, Node left, Node right) {
+        return fold(Node.binary(op, left, right));
+    }
+    
+    // Build a comparison, evaluated at compile time if possible
+    private Node comparison(Node left, Node right, int mask, String relation) {
+        return fold(Node.comparison(left, right, mask, relation));
+    }
+    
+    // Build a boolean NOT, evaluated at compile time if possible
+    private Node not(Node child) {
+        return fold(Node.not(child));
+    }
+    
+    private Node fold(Node node) {
+        Node folded = simplify(node);
+        
+        if(folded != node)
+            foldCount++;
+        
+        return folded;
+    }
+    
+    /**
+     * Evaluate constant operations and remove identities. Values wrap around at 8 bits
+     * like on the target.
+     * @return the simplified node, or {@code node} itself if nothing could be done
+     */
+    private Node simplify(Node node) {
+        Node l = node.left, r = node.right;
+        
+        if(node.op == '!')
+            return isByte(l) ? constant(l.value ^ 0xFF) : node;
+        
+        if(isByte(l) && isByte(r)) {
+            int a = l.value, b = r.value;
+            
+            switch(node.op) {
+                case '+':
+                    return constant(a + b);
+                case '-':
+                    return constant(a - b);
+                case '*':
+                    return constant(a * b);
+                case '/':
+                    return b == 0 ? node : constant(a / b); // dividing by zero is left to the target
+                case '&':
+                    return constant(a & b);
+                case '|':
+                    return constant(a | b);
+                case '~':
+                    return constant(a ^ b);
+                case 'c':
+                    return constant(compare(a, b, node.value) ? node.value : 0);
+            }
+        }
+        
+        // identities, the dropped side of x*0, x&0 and x|255 must not call a function
+        switch(node.op) {
+            case '+':
+            case '|':
+            case '~':
+                if(is(r, 0))
+                    return l;
+                if(is(l, 0))
+                    return r;
+                if(node.op == '|' && (is(r, 255) && !hasCall(l) || is(l, 255) && !hasCall(r)))
+                    return constant(255);
+                break;
+            case '-':
+                if(is(r, 0))
+                    return l;
+                break;
+            case '*':
+                if(is(r, 1))
+                    return l;
+                if(is(l, 1))
+                    return r;
+                if(is(r, 0) && !hasCall(l) || is(l, 0) && !hasCall(r))
+                    return constant(0);
+                break;
+            case '/':
+                if(is(r, 1))
+                    return l;
+                break;
+            case '&':
+                if(is(r, 255))
+                    return l;
+                if(is(l, 255))
+                    return r;
+                if(is(r, 0) && !hasCall(l) || is(l, 0) && !hasCall(r))
+                    return constant(0);
+        }
+        
+        return node;
+    }
+    
+    private static Node constant(int value) {
+        return Node.leaf('n', value & 0xFF, null);
+    }
+    
+    private static boolean isByte(Node node) {
+        return node.op == 'n' && node.value <= 0xFF;
+    }
+    
+    private static boolean is(Node node, int value) {
+        return node.op == 'n' && node.value == value;
+    }
+    
+    private static boolean hasCall(Node node) {
+        return node != null && (node.op == 'f' || hasCall(node.left) || hasCall(node.right));
+    }
+    
+    // Evaluate a comparison the way CMP sets the flag with the given mask
+    private static boolean compare(int a, int b, int mask) {
+        switch(mask) {
+            case 1:
+                return a == b;
+            case 2:
+                return a > b;
+            case 4:
+                return a >= b;
+            case 8:
+                return a < b;
+            case 16:
+                return a <= b;
+            default:
+                return a != b;
+        }
+    }
+    
+    /**
+     * Generate the code of an expression tree. Registers are allocated in Sethi-Ullman
+     * order, so the stack is only used when a subtree needs more registers than are left.
+     * @param node expression to evaluate
+     * @param base register the result is left in, registers above it are free to use
+     */
+    private void generate(Node node, int base) {
+        int reg = base;
+        
+        switch(node.op) {
+            case 'n':
+                emit(pack(MOV, reg, node.value));
+                return;
+            case 'v':
+                emit(pack(VTR, node.value, reg), "Variable " + node.name);
+                return;
+            case 'f':
+                comment("TODO call function: " + node.name);
+                return;
+            case '!':
+                generate(node.left, base);
+                emit(pack(MOV, base + 1, 255));
+                emit(pack(XOR, base + 1, reg, reg)); // XOR with 0xFF
+                return;
+        }
+        
+        int left, right;
+        
+        if(node.need <= REGISTERS - base) {
+            // evaluate the subtree needing more registers first
+            if(node.left.need >= node.right.need) {
+                generate(node.left, base);
+                generate(node.right, base + 1);
+                left = reg;
+                right = base + 1;
+            } else {
+                generate(node.right, base);
+                generate(node.left, base + 1);
+                left = base + 1;
+                right = reg;
+            }
+        } else {
+            // out of registers, keep the left operand on the stack
+            generate(node.left, base);
+            emit(pack(PSH, reg));
+            generate(node.right, base);
+            left = SP;
+            right = reg;
+        }
+        
+        switch(node.op) {
+            case '+':
+                emit(pack(ADD, left, right, reg));
+                break;
+            case '-':
+                emit(pack(SUB, left, right, reg));
+                break;
+            case '*':
+                emit(pack(MUL, left, right, reg));
+                break;
+            case '&':
+                emit(pack(AND, left, right, reg));
+                break;
+            case '|':
+                emit(pack(OR, left, right, reg));
+                break;
+            case '~':
+                emit(pack(XOR, left, right, reg));
+                break;
+            case 'c':
+                emit(pack(CMP, left, right));
+                
+                comment("Test " + node.name + " flag");
+                emit(pack(FTR, reg));
+                emit(pack(MOV, base + 1, node.value));
+                emit(pack(AND, reg, base + 1, reg));
+        }
+    }
+    
     // Parse and Translate an Assignment Statement
     private void assignment(String name) {
         match('=');
         
         skipWhite();
-        boolExpression();
-        print("RTV(r0, v" + indexOf(name) + ") // Variable " + name);
+        generate(boolExpression(), 0);
+        emit(pack(RTV, 0, symbols.lookup(name)), "Variable " + name);
     }
     
-    private int indexOf(String name) {
-        int c = varTable.indexOf(name);
+    // Block of code, its variables are dropped at the end
+    private void block() {
+        symbols.pushScope();
+        
+        try {
+            while(true) {
+                try {
+                    getToken();
+                    
+                    if(token == 'e' || token == 'l')
+                        return;
+                    
+                    if(token == 'p')
+                        expected("}");
+                    
+                    statement();
+                } catch(ParseError e) {
+                    if(!synchronize())
+                        throw e;
+                }
+            }
+        } finally {
+            symbols.popScope();
+        }
+    }
+    
+    private void prog() {
+        int delta = text.length() - cachedText.length(); // where the unchanged code after an edit moved
         
-        return c;
+        while(true) {
+            try {
+                skipWhite();
+                
+                int start = index - 1;
+                
+                if(reuse(start) || (delta != 0 && reuse(start - delta, start)))
+                    continue;
+                
+                getToken();
+                
+                if(token == 'p')
+                    return;
+                
+                if(token == 'e')
+                    errorAtLine("Encountered extra '}'");
+                
+                topLevelStatement(start);
+                flushListing();
+            } catch(ParseError e) {
+                if(!synchronize())
+                    return;
+            }
+        }
     }
     
-    // Block of code
-    private void block() {
-        getToken();
-        while(token != 'e' && token != 'l') {
-            statement();
+    // Compile a top level statement and remember the result, unless it had errors
+    private void topLevelStatement(int start) {
+        int errors = diagnostics.getErrorCount();
+        int firstInst = program.size();
+        int firstVar = symbols.size();
+        String[] scopeOnEntry = scope();
+        int highWaterOnEntry = symbols.getHighWater();
+        int labelBase = labelCount;
+        int folds = foldCount;
+        
+        statement();
+        
+        if(diagnostics.getErrorCount() == errors) {
+            // the span includes the lookahead character, it decided where the statement ended
+            int length = index - start;
             
-            getToken();
+            CachedStatement cached = new CachedStatement(start, length, hash(text, start, length),
+                    scopeOnEntry, highWaterOnEntry, labelBase);
             
-            if(token == 'p')
-                expected("}");
+            cached.code = program.toArray(firstInst, program.size());
+            cached.vars = symbols.namesFrom(firstVar).toArray(new String[0]);
+            cached.highWater = symbols.getHighWater();
+            cached.labels = labelCount - labelBase;
+            cached.folds = foldCount - folds;
+            
+            nextCache.put(start, cached);
         }
     }
     
-    private void prog() {
-        getToken();
-        while(token != 'p') {
-            statement();
-            
-            getToken();
+    // The visible variables by slot. The array is shared by the cached statements that
+    // see the same ones, and compared name by name, since different names can hash alike.
+    private String[] scope() {
+        if(!symbols.matches(scope))
+            scope = symbols.namesFrom(0).toArray(new String[0]);
+        
+        return scope;
+    }
+    
+    private boolean reuse(int start) {
+        return reuse(start, start);
+    }
+    
+    /**
+     * Reuse the statement cached at an offset of the last compiled text, if it is still
+     * the same and is compiled in the same context.
+     * @param cachedStart offset of the statement in the last compiled text
+     * @param start offset of the statement in the text being compiled
+     * @return true if the statement was reused and skipped
+     */
+    private boolean reuse(int cachedStart, int start) {
+        CachedStatement cached = cache.get(cachedStart);
+        
+        if(cached == null || cached.labelBase != labelCount || cached.highWaterOnEntry != symbols.getHighWater()
+                || !symbols.matches(cached.scope)
+                || start + cached.length > text.length()
+                || cached.hash != hash(text, start, cached.length)
+                || !text.regionMatches(start, cachedText, cached.start, cached.length))
+            return false;
+        
+        program.addAll(cached.code, 0, cached.code.length);
+        
+        for(String name : cached.vars)
+            symbols.declare(name);
+        
+        symbols.raiseHighWater(cached.highWater); // slots of the variables in its blocks
+        
+        labelCount += cached.labels;
+        foldCount += cached.folds;
+        
+        if(listing != null) { // from the code, the comments are not kept
+            comment("Unchanged statement");
             
-            if(token == 'e')
-                errorAtLine("Encountered extra '}'");
+            for(long inst : cached.code)
+                print(InstructionList.toCode(inst));
         }
+        
+        index = start + cached.length;
+        look = text.charAt(index - 1);
+        
+        nextCache.put(start, cached.movedTo(start));
+        reusedCount++;
+        
+        return true;
+    }
+    
+    // 64 bit FNV-1a hash of a span of the text
+    private static long hash(String s, int start, int length) {
+        long h = 0xCBF29CE484222325L;
+        
+        for(int i = start; i < start + length; i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        
+        return h;
     }
     
     private void statement() {
+        checkCancelled();
+        
         switch(token) {
             case 'i':
                 doIf();
@@ -549,15 +1100,7 @@ public class ThreadedCompiler {
                 addVar();
                 break;
             case 'a':
-                skipWhite();
-                if(!isLetter(look))
-                    expected("assignment statement");
-
-                String name = getName();
-                if(!varTable.contains(name))
-                    errorAtLine("Variable " + name + " not initialized!");
-
-                assignment(name);
+                assignment(value);
                 break;
             case 'c':
                 doCasm();
@@ -575,32 +1118,31 @@ public class ThreadedCompiler {
     }
     
     private void postLabel(int label) {
-        print("LBL(l" + label + ")");
+        emit(pack(SHORTCUT_LBL, label));
     }
     
     private void doIf() {
         int L1 = newLabel();
         int L2 = L1;
         
-        print("// If statement - Boolean condition");
+        comment("If statement - Boolean condition");
         
         match('(');
         
-        boolExpression();
+        generate(boolExpression(), 0);
         
-        print("// If statement - Boolean condition - Check result (0 = f, other = t)");
+        comment("If statement - Boolean condition - Check result (0 = f, other = t)");
         
-        print("PSH(r0)");
-        print("MOV(r0, #1)");
-        print("CMP(SP+, r0)");
+        emit(pack(MOV, 1, 0));
+        emit(pack(CMP, 0, 1));
         
         match(')');
         
-        print("// If statement - Skip block if condition evaluates false");
+        comment("If statement - Skip block if condition evaluates false");
         
-        print("JIF(l" + L1 + ", NOT_EQUAL)");
+        emit(pack(JIF, L1, EQUAL));
         
-        print("// If statement - Conditional block");
+        comment("If statement - Conditional block");
         
         match('{');
         
@@ -609,11 +1151,11 @@ public class ThreadedCompiler {
         if(token == 'l') {
             L2 = newLabel();
             
-            print("// If statement - Skip else block");
+            comment("If statement - Skip else block");
             
-            print("JMP(l" + L2 + ")");
+            emit(pack(JMP, L2));
             
-            print("// If statement - Else block");
+            comment("If statement - Else block");
             
             postLabel(L1);
             
@@ -622,7 +1164,7 @@ public class ThreadedCompiler {
         }
         
         postLabel(L2);
-        print("// If statement - End");
+        comment("If statement - End");
     }
     
     private void doWhile() {
@@ -630,50 +1172,55 @@ public class ThreadedCompiler {
         int L2 = newLabel();
         postLabel(L1);
         
-        print("// While block - Boolean condition");
+        comment("While block - Boolean condition");
         
         match('(');
         
-        boolExpression();
+        generate(boolExpression(), 0);
         
-        print("// While block - Boolean condition - Check result (0 = f, other = t)");
+        comment("While block - Boolean condition - Check result (0 = f, other = t)");
         
-        print("PSH(r0)");
-        print("MOV(r0, #1)");
-        print("CMP(SP+, r0)");
+        emit(pack(MOV, 1, 0));
+        emit(pack(CMP, 0, 1));
         
         match(")");
         
-        print("// While block - Jump out of block if condition evaluates false");
+        comment("While block - Jump out of block if condition evaluates false");
         
-        print("JIF(l" + L2 + ", NOT_EQUAL)");
+        emit(pack(JIF, L2, EQUAL));
         
-        print("// While block - Loop block");
+        comment("While block - Loop block");
         
         match("{");
         block();
         
-        print("// While block - Jump back to beginning of while");
-        print("JMP(l" + L1 + ")");
+        comment("While block - Jump back to beginning of while");
+        emit(pack(JMP, L1));
         
         postLabel(L2);
         
-        print("// While block - End");
+        comment("While block - End");
     }
     
     private void addVar() {
         String name = getName();
         
-        if(varTable.size() >= 256)
+        if(symbols.size() >= SymbolTable.MAX_SLOTS)
             errorAtLine("Variable " + name + " exceeds maximum of 256!");
         
-        if(varTable.contains(name))
+        if(symbols.contains(name))
             errorAtLine("Variable " + name + " is already declared!");
         
-        varTable.add(name);
+        boolean reused = symbols.size() < symbols.getHighWater();
+        int slot = symbols.declare(name);
         
-        if(look == '=')
+        if(look == '=') {
             assignment(name);
+        } else if(reused) {
+            // the slot belonged to a variable of a closed scope, clear its value
+            emit(pack(MOV, 0, 0));
+            emit(pack(RTV, 0, slot), "Variable " + name);
+        }
         
         if(look == ',') {
             match(',');
@@ -684,49 +1231,145 @@ public class ThreadedCompiler {
     private void doCasm() {
         match('{');
         
-        skipWhite();
-        
-        String casmText = "";
+        int start = index - 1;
         
         while(look != '}') {
-            
             if(!charsLeft())
                 expected("} to close CASM block");
             
-            if(look != ' ')
-                casmText += look;
-            
             getChar();
         }
         
+        int end = index - 1;
+        
         getToken();
         
-        print("// Start of CASM block");
-        print(casmText);
-        print("// End of CASM block");
+        comment("Start of CASM block");
+        
+        int first = program.size();
+        
+        try {
+            new Assembler(text.substring(start, end)).parse(program);
+        } catch(AssemblerException ex) {
+            for(Diagnostic d : ex.getDiagnostics())
+                diagnostics.error(start + d.getOffset(), d.getMessage());
+        }
+        
+        if(listing != null) {
+            for(int i = first; i < program.size(); i++)
+                print(InstructionList.toCode(program.get(i)));
+        }
+        
+        comment("End of CASM block");
     }
     
-    // Remove comments from source code and uppercase it
+    // Blank out comments and uppercase the source code. Every character stays
+    // at its offset, so diagnostics point into the original source.
     private String prepareForParsing(String original) {
-        String ret = "";
-        
-        String[] lines = original.split("\n");
+        StringBuilder ret = new StringBuilder(original.length() + 2);
         
-        for(String curLine : lines) {
-            // Remove comments
-            if (curLine.length() > 1) {
-                for (int i = 0; i < curLine.length() - 1; i++) {
-                    if(curLine.charAt(i) == '/' && curLine.charAt(i + 1) == '/')
-                        curLine = curLine.substring(0, i);
+        for(int i = 0; i < original.length(); i++) {
+            char ch = original.charAt(i);
+            
+            if(ch == '/' && i + 1 < original.length() && original.charAt(i + 1) == '/') {
+                // Remove comment up to the end of the line
+                while(i < original.length() && original.charAt(i) != '\n') {
+                    ret.append(' ');
+                    i++;
                 }
+                
+                if(i < original.length())
+                    ret.append('\n');
+            } else {
+                ret.append(Character.toUpperCase(ch));
             }
-            ret += curLine + "\n";
         }
         
-        ret = ret.toUpperCase();
+        ret.append('\n');
+        ret.append('\u2009'); // terminator character
+        
+        return ret.toString();
+    }
+    
+    /** Expression tree node. Whole expressions are parsed before any code is generated for them. */
+    private static class Node {
+        final char op;     // 'n' number, 'v' variable, 'f' function call, '!' not,
+                           // 'c' comparison, or the binary operator
+        final int value;   // number, variable index or flag mask of a comparison
+        final String name; // variable, function or relation name
+        final Node left, right;
+        final int need;    // registers needed to evaluate without the stack (Sethi-Ullman number)
+        
+        private Node(char op, int value, String name, Node left, Node right, int need) {
+            this.op = op;
+            this.value = value;
+            this.name = name;
+            this.left = left;
+            this.right = right;
+            this.need = need;
+        }
+        
+        static Node leaf(char op, int value, String name) {
+            return new Node(op, value, name, null, null, 1);
+        }
+        
+        static Node binary(char op, Node left, Node right) {
+            int need = left.need == right.need ? left.need + 1 : Math.max(left.need, right.need);
+            return new Node(op, 0, null, left, right, need);
+        }
         
-        ret += "\u2009"; // terminator character
+        // the flag mask needs a second register
+        static Node comparison(Node left, Node right, int mask, String name) {
+            Node cmp = binary('c', left, right);
+            return new Node('c', mask, name, left, right, Math.max(cmp.need, 2));
+        }
         
-        return ret;
+        // the 0xFF mask needs a second register
+        static Node not(Node child) {
+            return new Node('!', 0, null, child, null, Math.max(child.need, 2));
+        }
     }
+    
+    /** Result of compiling a top level statement, keyed by its source and the context it was compiled in. */
+    private static class CachedStatement {
+        final int start, length; // span in the text it was compiled from, lookahead included
+        final long hash;         // of the span
+        final String[] scope; // context on entry: the visible variables by slot,
+        final int highWaterOnEntry, labelBase; // the slots used and the labels used
+        
+        long[] code;
+        String[] vars; // declared by the statement
+        int highWater; // slots used after it
+        int labels;    // used by the statement
+        int folds;
+        
+        CachedStatement(int start, int length, long hash, String[] scope, int highWaterOnEntry, int labelBase) {
+            this.start = start;
+            this.length = length;
+            this.hash = hash;
+            this.scope = scope;
+            this.highWaterOnEntry = highWaterOnEntry;
+            this.labelBase = labelBase;
+        }
+        
+        // the same statement, found at another offset
+        CachedStatement movedTo(int newStart) {
+            CachedStatement moved = new CachedStatement(newStart, length, hash, scope, highWaterOnEntry, labelBase);
+            moved.code = code;
+            moved.vars = vars;
+            moved.highWater = highWater;
+            moved.labels = labels;
+            moved.folds = folds;
+            
+            return moved;
+        }
+    }
+    
+    private static final int REGISTERS = 8; // r0 - r7
+    
+    private static final int ADD = 0x01, SUB = 0x02, MUL = 0x03, JMP = 0x07, JIF = 0x08,
+            MOV = 0x09, PSH = 0x0A, VTR = 0x0F, RTV = 0x10, FTR = 0x11, CMP = 0x12,
+            AND = 0x13, OR = 0x15, XOR = 0x16;
+    
+    private static final int EQUAL = 0; // relation ID for JIF
 }
\ No newline at end of file
@@ -1,13 +1,16 @@
 package chasm.instructions;
 
 public class Argument {
-    public Argument(String name, Object value) {
+    public Argument(String name, int value) {
         argName = name;
-        argVal = value;
+        argVal = value & (name.charAt(0) == 's' ? 0xFFFF : 0xFF); // bytes are unsigned
+        hasValue = true;
     }
     
     public Argument(String name) {
         argName = name;
+        argVal = 0;
+        hasValue = false;
     }
     
     public String getName() {
@@ -19,22 +22,18 @@ public class Argument {
     }
     
     public int getValue() {
-        if(argVal instanceof Byte)
-            return Byte.toUnsignedInt((byte) argVal);
-        else if(argVal instanceof Character)
-            return (int) ((Character) argVal);
-        else
-            return (int) argVal;
+        return argVal;
     }
     
     @Override
     public String toString() {
-        if(argVal == null)
+        if(!hasValue)
             return argName;
         else
-            return argName.charAt(0) + ("" + (argVal instanceof Character ? (int) (Character) argVal: argVal));
+            return argName.charAt(0) + ("" + argVal);
     }
     
     private final String argName;
-    private Object argVal;
+    private final int argVal;
+    private final boolean hasValue;
 }
@@ -0,0 +1,64 @@
+package chasm.instructions;
+
+import static chasm.MathUtils.*;
+import java.util.Arrays;
+
+/** Growable byte buffer that instructions are encoded into. */
+public class ByteEmitter {
+    public ByteEmitter() {
+        this(64);
+    }
+    
+    public ByteEmitter(int capacity) {
+        bytes = new byte[Math.max(capacity, 16)];
+    }
+    
+    public void write(int b) {
+        ensureCapacity(size + 1);
+        bytes[size++] = (byte) b;
+    }
+    
+    /** Write a short, high byte first. */
+    public void writeShort(char s) {
+        ensureCapacity(size + 2);
+        bytes[size++] = getLeftByte(s);
+        bytes[size++] = getRightByte(s);
+    }
+    
+    /** Overwrite the short at {@code offset}, high byte first. */
+    public void setShort(int offset, char s) {
+        bytes[offset] = getLeftByte(s);
+        bytes[offset + 1] = getRightByte(s);
+    }
+    
+    public void write(byte[] b, int offset, int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(b, offset, bytes, size, length);
+        size += length;
+    }
+    
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    /** Copy the emitted bytes into {@code dest}, starting at {@code offset}. */
+    public void copyTo(byte[] dest, int offset) {
+        System.arraycopy(bytes, 0, dest, offset, size);
+    }
+    
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+    
+    private void ensureCapacity(int needed) {
+        if(needed > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+    }
+    
+    private byte[] bytes;
+    private int size = 0;
+}
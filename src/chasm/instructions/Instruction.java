@@ -1,8 +1,5 @@
 package chasm.instructions;
 
-import static chasm.MathUtils.*;
-import java.util.ArrayList;
-
 public class Instruction {
     /**
      * Instruction constructor
@@ -89,20 +86,26 @@ public class Instruction {
         return ret;
     }
     
-    public ArrayList<Byte> toByteCode() {
-        ArrayList<Byte> ret = new ArrayList();
-        ret.add(id);
+    /** Size of this instruction once encoded, in bytes. */
+    public int encodedSize() {
+        int size = 1; // id
+        
+        for (Argument arg : args)
+            size += arg.getPrefix() == 's' ? 2 : 1;
+        
+        return size;
+    }
+    
+    /** Write the bytecode of this instruction to the given emitter. */
+    public void encode(ByteEmitter out) {
+        out.write(id);
         
         for (Argument arg : args) {
-            if(arg.getName().startsWith("s")) {
-                ret.add(getLeftByte ((char) arg.getValue()));
-                ret.add(getRightByte((char) arg.getValue()));
-            } else {
-                ret.add((byte) arg.getValue());
-            }
+            if(arg.getPrefix() == 's')
+                out.writeShort((char) arg.getValue());
+            else
+                out.write(arg.getValue());
         }
-        
-        return ret;
     }
     
     public byte id;
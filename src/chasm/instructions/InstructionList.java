@@ -0,0 +1,226 @@
+package chasm.instructions;
+
+import chasm.ChASM;
+import java.util.Arrays;
+
+/**
+ * Compact list of instructions, shared by the compiler, assembler and disassembler.
+ * <p>
+ * Every instruction is packed into a single {@code long}: the opcode takes the low
+ * 8 bits and the operands follow in order, 8 bits each, or 16 bits for "s" arguments.
+ * The widest instruction, LIN, needs 48 bits. The argument names are not stored;
+ * they come from the matching reference instruction in {@link ChASM#INSTRUCTIONS_MAP}.
+ */
+public class InstructionList {
+    public InstructionList() {
+        this(64);
+    }
+    
+    public InstructionList(int capacity) {
+        instructions = new long[Math.max(capacity, 16)];
+    }
+    
+    public void add(long inst) {
+        if(size == instructions.length)
+            instructions = Arrays.copyOf(instructions, size * 2);
+        
+        instructions[size++] = inst;
+    }
+    
+    public void addAll(InstructionList list) {
+        addAll(list.instructions, 0, list.size);
+    }
+    
+    public void addAll(long[] insts, int offset, int length) {
+        if(size + length > instructions.length)
+            instructions = Arrays.copyOf(instructions, Math.max(size + length, size * 2));
+        
+        System.arraycopy(insts, offset, instructions, size, length);
+        size += length;
+    }
+    
+    public long get(int i) {
+        return instructions[i];
+    }
+    
+    public void set(int i, long inst) {
+        instructions[i] = inst;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    /** Drop every instruction from index {@code newSize} on. */
+    public void truncate(int newSize) {
+        size = newSize;
+    }
+    
+    public void clear() {
+        size = 0;
+    }
+    
+    public long[] toArray() {
+        return Arrays.copyOf(instructions, size);
+    }
+    
+    /** @return the instructions from index {@code from} up to {@code to}, excluded */
+    public long[] toArray(int from, int to) {
+        return Arrays.copyOfRange(instructions, from, to);
+    }
+    
+    /** Total size of the instructions once encoded, in bytes. */
+    public int encodedSize() {
+        int bytes = 0;
+        
+        for(int i = 0; i < size; i++)
+            bytes += encodedSize(instructions[i]);
+        
+        return bytes;
+    }
+    
+    /** Listing of the instructions, one per line. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(size * 16);
+        
+        for(int i = 0; i < size; i++)
+            sb.append(toCode(instructions[i])).append('\n');
+        
+        return sb.toString();
+    }
+    
+    private long[] instructions;
+    private int size = 0;
+    
+    /* ----------------------------------------------------------------------
+     * Packed instructions
+     * ------------------------------------------------------------------- */
+    
+    /** Register ID that pops the stack when read ("SP+"). */
+    public static final int SP = 10;
+    
+    /** Opcode of the shortcut LBL, which only takes a label ID. */
+    public static final int SHORTCUT_LBL = 0xFF;
+    
+    /** @return a packed instruction with the given opcode and all operands set to 0 */
+    public static long pack(int opcode) {
+        if(reference(opcode) == null)
+            throw new IllegalArgumentException("Unknown instruction 0x" + Integer.toHexString(opcode & 0xFF).toUpperCase() + ".");
+        
+        return opcode & 0xFF;
+    }
+    
+    public static long pack(int opcode, int a) {
+        return withOperand(pack(opcode), 0, a);
+    }
+    
+    public static long pack(int opcode, int a, int b) {
+        return withOperand(pack(opcode, a), 1, b);
+    }
+    
+    public static long pack(int opcode, int a, int b, int c) {
+        return withOperand(pack(opcode, a, b), 2, c);
+    }
+    
+    public static int opcode(long inst) {
+        return (int) (inst & 0xFF);
+    }
+    
+    public static int operandCount(long inst) {
+        return SHIFTS[opcode(inst)].length;
+    }
+    
+    public static int operand(long inst, int i) {
+        int op = opcode(inst);
+        return (int) ((inst >>> SHIFTS[op][i]) & MASKS[op][i]);
+    }
+    
+    /** @return {@code inst} with operand {@code i} replaced by {@code value} */
+    public static long withOperand(long inst, int i, int value) {
+        int op = opcode(inst);
+        int shift = SHIFTS[op][i];
+        long mask = MASKS[op][i];
+        
+        return (inst & ~(mask << shift)) | ((value & mask) << shift);
+    }
+    
+    /** @return true if operand {@code i} is a 16 bit ("s") argument */
+    public static boolean isShort(long inst, int i) {
+        return MASKS[opcode(inst)][i] == 0xFFFF;
+    }
+    
+    /** @return the reference instruction carrying the argument names of this opcode */
+    public static Instruction reference(long inst) {
+        return reference(opcode(inst));
+    }
+    
+    private static Instruction reference(int opcode) {
+        return ChASM.INSTRUCTIONS_MAP.get(opcode & 0xFF);
+    }
+    
+    public static int encodedSize(long inst) {
+        return SIZES[opcode(inst)];
+    }
+    
+    /** Write the bytecode of a packed instruction to the given emitter. */
+    public static void encode(long inst, ByteEmitter out) {
+        out.write(opcode(inst));
+        
+        for(int i = 0; i < operandCount(inst); i++) {
+            if(isShort(inst, i))
+                out.writeShort((char) operand(inst, i));
+            else
+                out.write(operand(inst, i));
+        }
+    }
+    
+    /** @return the packed instruction as CASM code that the assembler can read back */
+    public static String toCode(long inst) {
+        Instruction ref = reference(inst);
+        StringBuilder sb = new StringBuilder(ref.name).append('(');
+        
+        for(int i = 0; i < ref.nargs; i++) {
+            if(i > 0)
+                sb.append(", ");
+            
+            char prefix = ref.args[i].getPrefix();
+            int value = operand(inst, i);
+            
+            if(prefix == 'r' && value == SP)
+                sb.append("SP+");
+            else
+                sb.append(prefix == 's' ? '#' : prefix).append(value);
+        }
+        
+        return sb.append(')').toString();
+    }
+    
+    // operand layout of every opcode, taken from the reference instructions
+    private static final int[][] SHIFTS = new int[256][];
+    private static final long[][] MASKS = new long[256][];
+    private static final int[] SIZES = new int[256];
+    
+    static {
+        Arrays.fill(SHIFTS, new int[0]);
+        Arrays.fill(MASKS, new long[0]);
+        
+        for(Instruction ref : ChASM.INSTRUCTIONS_MAP.values()) {
+            int op = ref.id & 0xFF;
+            int shift = 8;
+            
+            SHIFTS[op] = new int[ref.nargs];
+            MASKS[op] = new long[ref.nargs];
+            
+            for(int i = 0; i < ref.nargs; i++) {
+                int bits = ref.args[i].getPrefix() == 's' ? 16 : 8;
+                
+                SHIFTS[op][i] = shift;
+                MASKS[op][i] = (1L << bits) - 1;
+                shift += bits;
+            }
+            
+            SIZES[op] = ref.encodedSize();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package chasm.vm;
+
+import chasm.instructions.ByteEmitter;
+import java.util.HashMap;
+
+/**
+ * Just enough of a class file writer for the {@link Jit}: a class with a default
+ * constructor, implementing one interface with a single method.
+ * <p>
+ * Classes are written as version 49 (Java 5), which needs no stack map frames, so
+ * the generated code can branch without any flow analysis here.
+ */
+final class ClassFile {
+    // JVM opcodes used by the Jit
+    static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, ILOAD = 0x15,
+            ALOAD = 0x19, IALOAD = 0x2E, BALOAD = 0x33, ISTORE = 0x36, IASTORE = 0x4F, BASTORE = 0x54,
+            IADD = 0x60, ISUB = 0x64, IMUL = 0x68, ISHL = 0x78, IUSHR = 0x7C, IAND = 0x7E, IOR = 0x80,
+            IXOR = 0x82, I2B = 0x91, IFEQ = 0x99, IF_ICMPNE = 0xA0, IF_ICMPLT = 0xA1, IF_ICMPGE = 0xA2,
+            GOTO = 0xA7, IRETURN = 0xAC, WIDE = 0xC4;
+    
+    /**
+     * @param name internal name of the class
+     * @param implemented internal name of the interface it implements
+     */
+    ClassFile(String name, String implemented) {
+        thisClass = classRef(name);
+        superClass = classRef("java/lang/Object");
+        implementedClass = classRef(implemented);
+    }
+    
+    /** @return the constant pool index of an int constant */
+    int integer(int value) {
+        return constant("I" + value, () -> {
+            pool.write(3);
+            pool.writeShort((char) (value >>> 16));
+            pool.writeShort((char) value);
+        });
+    }
+    
+    /**
+     * @param method name of the method implementing the interface
+     * @param descriptor its descriptor
+     * @param code its bytecode
+     * @param maxStack operand stack depth the code needs
+     * @param maxLocals local variables the code uses, including the parameters
+     * @return the class file
+     */
+    byte[] toByteArray(String method, String descriptor, ByteEmitter code, int maxStack, int maxLocals) {
+        // every constant has to be in the pool before it is written
+        int init = utf8("<init>"), voidDescriptor = utf8("()V"), codeName = utf8("Code");
+        int objectInit = methodRef(superClass, init, voidDescriptor);
+        int methodName = utf8(method), methodDescriptor = utf8(descriptor);
+        
+        ByteEmitter out = new ByteEmitter(pool.size() + code.size() + 128);
+        out.writeShort((char) 0xCAFE);
+        out.writeShort((char) 0xBABE);
+        out.writeShort((char) 0); // minor version
+        out.writeShort((char) 49);
+        out.writeShort((char) (poolCount + 1));
+        out.write(pool.toByteArray());
+        out.writeShort((char) 0x0031); // public final super
+        out.writeShort((char) thisClass);
+        out.writeShort((char) superClass);
+        out.writeShort((char) 1);
+        out.writeShort((char) implementedClass);
+        out.writeShort((char) 0); // fields
+        out.writeShort((char) 2); // methods
+        
+        // public <init>() { super(); }
+        ByteEmitter constructor = new ByteEmitter(8);
+        constructor.write(0x2A); // aload_0
+        constructor.write(0xB7); // invokespecial
+        constructor.writeShort((char) objectInit);
+        constructor.write(0xB1); // return
+        method(out, init, voidDescriptor, codeName, constructor, 1, 1);
+        
+        method(out, methodName, methodDescriptor, codeName, code, maxStack, maxLocals);
+        
+        out.writeShort((char) 0); // attributes
+        return out.toByteArray();
+    }
+    
+    private final ByteEmitter pool = new ByteEmitter(256);
+    private final HashMap<String, Integer> constants = new HashMap();
+    private int poolCount = 0;
+    
+    private final int thisClass, superClass, implementedClass;
+    
+    private static void method(ByteEmitter out, int name, int descriptor, int codeName, ByteEmitter code,
+            int maxStack, int maxLocals) {
+        out.writeShort((char) 0x0001); // public
+        out.writeShort((char) name);
+        out.writeShort((char) descriptor);
+        out.writeShort((char) 1);
+        
+        out.writeShort((char) codeName);
+        writeInt(out, 12 + code.size());
+        out.writeShort((char) maxStack);
+        out.writeShort((char) maxLocals);
+        writeInt(out, code.size());
+        out.write(code.toByteArray());
+        out.writeShort((char) 0); // exception table
+        out.writeShort((char) 0); // attributes
+    }
+    
+    private static void writeInt(ByteEmitter out, int value) {
+        out.writeShort((char) (value >>> 16));
+        out.writeShort((char) value);
+    }
+    
+    private int utf8(String s) {
+        return constant("U" + s, () -> {
+            pool.write(1);
+            pool.writeShort((char) s.length()); // names are ASCII
+            for(int i = 0; i < s.length(); i++)
+                pool.write(s.charAt(i));
+        });
+    }
+    
+    private int classRef(String name) {
+        int nameIndex = utf8(name);
+        
+        return constant("C" + name, () -> {
+            pool.write(7);
+            pool.writeShort((char) nameIndex);
+        });
+    }
+    
+    private int methodRef(int owner, int name, int descriptor) {
+        int nameAndType = constant("N" + name + "," + descriptor, () -> {
+            pool.write(12);
+            pool.writeShort((char) name);
+            pool.writeShort((char) descriptor);
+        });
+        
+        return constant("M" + owner + "," + nameAndType, () -> {
+            pool.write(10);
+            pool.writeShort((char) owner);
+            pool.writeShort((char) nameAndType);
+        });
+    }
+    
+    // add a constant to the pool once, keyed by its type and contents
+    private int constant(String key, Runnable write) {
+        Integer index = constants.get(key);
+        
+        if(index == null) {
+            write.run();
+            index = ++poolCount;
+            constants.put(key, index);
+        }
+        
+        return index;
+    }
+}
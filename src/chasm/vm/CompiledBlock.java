@@ -0,0 +1,17 @@
+package chasm.vm;
+
+/**
+ * A block of CASM code translated to JVM bytecode by the {@link Jit}. Only implemented by
+ * the generated classes; it is public because they are defined by their own class loader.
+ */
+public interface CompiledBlock {
+    /**
+     * Run the block.
+     * @param registers registers of the VM
+     * @param variables variables of the VM
+     * @param memory memory of the VM
+     * @param flags holds the relation flags, read and updated by the block
+     * @return the code index the program continues at
+     */
+    int run(int[] registers, int[] variables, byte[] memory, int[] flags);
+}
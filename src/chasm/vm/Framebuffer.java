@@ -0,0 +1,248 @@
+package chasm.vm;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Off-screen display the graphics instructions draw into. Colors are RRRGGGBB bytes,
+ * as packed by the assembler's {@code C(r, g, b)} arguments.
+ * <p>
+ * Pixels are kept as one color byte each, and drawing only writes bytes. The changed
+ * span of every row is tracked, so {@link #update()} converts just what was drawn since
+ * the last update to the {@link BufferedImage}, instead of the whole screen every frame.
+ * Each row is a page of {@link PagedMemory}, so snapshots only copy the rows drawn on.
+ */
+public class Framebuffer {
+    public static final int WIDTH = 256;
+    public static final int HEIGHT = 256;
+    
+    public Framebuffer() {
+        rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        clear();
+    }
+    
+    /** PXL: set one pixel. */
+    public void pixel(int x, int y, int color) {
+        if(x < 0 || x >= WIDTH || y < 0 || y >= HEIGHT)
+            return;
+        
+        pixels[y * WIDTH + x] = (byte) color;
+        rows.dirty[y] = true;
+        touch(x, x, y);
+    }
+    
+    /** LIN: draw a line between two points, both included. */
+    public void line(int x0, int y0, int x1, int y1, int color) {
+        // Bresenham, for all octants
+        int dx = Math.abs(x1 - x0), sx = x0 < x1 ? 1 : -1;
+        int dy = -Math.abs(y1 - y0), sy = y0 < y1 ? 1 : -1;
+        int error = dx + dy;
+        
+        while(true) {
+            pixel(x0, y0, color);
+            
+            if(x0 == x1 && y0 == y1)
+                return;
+            
+            int twice = 2 * error;
+            
+            if(twice >= dy) {
+                error += dy;
+                x0 += sx;
+            }
+            if(twice <= dx) {
+                error += dx;
+                y0 += sy;
+            }
+        }
+    }
+    
+    /** PRT: draw a character in white, with its top left corner at the given point. */
+    public void character(int x, int y, char c) {
+        long glyph = c < Glyphs.MASKS.length ? Glyphs.MASKS[c] : 0;
+        
+        // one bit per pixel, row by row from the top, leftmost pixel in the lowest bit
+        for(int row = 0; row < GLYPH_SIZE && glyph != 0; row++, glyph >>>= GLYPH_SIZE) {
+            int bits = (int) glyph & 0xFF;
+            int py = y + row;
+            
+            if(bits == 0 || py < 0 || py >= HEIGHT)
+                continue;
+            
+            int left = WIDTH, right = -1;
+            
+            for(int column = 0; column < GLYPH_SIZE; column++) {
+                int px = x + column;
+                
+                if((bits & 1 << column) == 0 || px < 0 || px >= WIDTH)
+                    continue;
+                
+                pixels[py * WIDTH + px] = (byte) 0xFF;
+                left = Math.min(left, px);
+                right = px;
+            }
+            
+            if(right >= 0) {
+                rows.dirty[py] = true;
+                touch(left, right, py);
+            }
+        }
+    }
+    
+    /** GMT: the program finished drawing a frame. */
+    public void frame() {
+        frames++;
+        
+        if(frameListener != null)
+            frameListener.run();
+    }
+    
+    /** @param listener run on every finished frame, or null */
+    public void setFrameListener(Runnable listener) {
+        frameListener = listener;
+    }
+    
+    public int getFrameCount() {
+        return frames;
+    }
+    
+    /** @return the RRRGGGBB color of a pixel */
+    public int getPixel(int x, int y) {
+        return pixels[y * WIDTH + x] & 0xFF;
+    }
+    
+    /**
+     * Convert the pixels drawn since the last update to the image.
+     * @return the bounds of the changed area, to repaint, or null if nothing changed
+     */
+    public Rectangle update() {
+        if(dirtyTop > dirtyBottom)
+            return null;
+        
+        int left = WIDTH, right = -1;
+        
+        for(int y = dirtyTop; y <= dirtyBottom; y++) {
+            if(rowLeft[y] > rowRight[y])
+                continue;
+            
+            for(int i = y * WIDTH + rowLeft[y], end = y * WIDTH + rowRight[y]; i <= end; i++)
+                rgb[i] = PALETTE[pixels[i] & 0xFF];
+            
+            left = Math.min(left, rowLeft[y]);
+            right = Math.max(right, rowRight[y]);
+            rowLeft[y] = WIDTH;
+            rowRight[y] = -1;
+        }
+        
+        Rectangle bounds = new Rectangle(left, dirtyTop, right - left + 1, dirtyBottom - dirtyTop + 1);
+        dirtyTop = HEIGHT;
+        dirtyBottom = -1;
+        
+        return bounds;
+    }
+    
+    /** @return the image of the display, brought up to date */
+    public BufferedImage getImage() {
+        update();
+        return image;
+    }
+    
+    /** Clear to black. */
+    public void clear() {
+        rows.clear();
+        Arrays.fill(rowLeft, 0);
+        Arrays.fill(rowRight, WIDTH - 1);
+        dirtyTop = 0;
+        dirtyBottom = HEIGHT - 1;
+        frames = 0;
+    }
+    
+    /** @return the rows of the display, for a {@link Snapshot} */
+    byte[][] save() {
+        return rows.save();
+    }
+    
+    /** Bring back saved rows and the frame count. */
+    void restore(byte[][] saved, int frames) {
+        rows.restore(saved, row -> touch(0, WIDTH - 1, row));
+        this.frames = frames;
+    }
+    
+    /** @return the RRRGGGBB color as 0xRRGGBB */
+    public static int toRGB(int color) {
+        int r = (color >> 5) & 7, g = (color >> 2) & 7, b = color & 3;
+        return (r * 255 / 7) << 16 | (g * 255 / 7) << 8 | b * 255 / 3;
+    }
+    
+    // widen the changed span of a row
+    private void touch(int left, int right, int y) {
+        if(left < rowLeft[y])
+            rowLeft[y] = left;
+        if(right > rowRight[y])
+            rowRight[y] = right;
+        if(y < dirtyTop)
+            dirtyTop = y;
+        if(y > dirtyBottom)
+            dirtyBottom = y;
+    }
+    
+    private final PagedMemory rows = new PagedMemory(WIDTH * HEIGHT); // a page per row
+    private final byte[] pixels = rows.bytes;
+    private final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    private final int[] rgb;
+    
+    // changed span of every row, empty when left > right, and the changed rows
+    private final int[] rowLeft = new int[HEIGHT];
+    private final int[] rowRight = new int[HEIGHT];
+    private int dirtyTop, dirtyBottom;
+    
+    private Runnable frameListener = null;
+    private int frames = 0;
+    
+    private static final int GLYPH_SIZE = 8;
+    
+    private static final int[] PALETTE = new int[256];
+    
+    static {
+        for(int color = 0; color < PALETTE.length; color++)
+            PALETTE[color] = toRGB(color);
+    }
+    
+    /**
+     * Glyphs of the first 256 characters as 8x8 bit masks, cut out of an atlas drawn
+     * with the font once. A holder class, so only programs that print pay for the font.
+     */
+    private static class Glyphs {
+        static final long[] MASKS = new long[256];
+        
+        static {
+            BufferedImage atlas = new BufferedImage(MASKS.length * GLYPH_SIZE, GLYPH_SIZE, BufferedImage.TYPE_BYTE_GRAY);
+            Graphics2D graphics = atlas.createGraphics();
+            graphics.setFont(new Font(Font.MONOSPACED, Font.PLAIN, GLYPH_SIZE));
+            graphics.setColor(Color.WHITE);
+            
+            for(int c = 0; c < MASKS.length; c++) {
+                // clipped to its cell, so wide glyphs don't spill into the next one
+                graphics.setClip(c * GLYPH_SIZE, 0, GLYPH_SIZE, GLYPH_SIZE);
+                graphics.drawString(String.valueOf((char) c), c * GLYPH_SIZE, GLYPH_SIZE - 1);
+            }
+            
+            graphics.dispose();
+            
+            for(int c = 0; c < MASKS.length; c++) {
+                long mask = 0;
+                
+                for(int y = 0; y < GLYPH_SIZE; y++) {
+                    for(int x = 0; x < GLYPH_SIZE; x++) {
+                        if((atlas.getRGB(c * GLYPH_SIZE + x, y) & 0xFF) != 0)
+                            mask |= 1L << (y * GLYPH_SIZE + x);
+                    }
+                }
+                
+                MASKS[c] = mask;
+            }
+        }
+    }
+}
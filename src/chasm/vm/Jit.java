@@ -0,0 +1,486 @@
+package chasm.vm;
+
+import chasm.instructions.ByteEmitter;
+import static chasm.vm.ClassFile.*;
+import static chasm.vm.PagedMemory.PAGE_SHIFT;
+import static chasm.vm.Program.*;
+import java.util.ArrayList;
+
+/**
+ * Second tier of the {@link VirtualMachine}: translates hot blocks of a program into JVM
+ * classes, so HotSpot compiles them to native code.
+ * <p>
+ * The interpreter counts how often every jump target is reached. Once a target reaches
+ * {@link #THRESHOLD}, the straight-line code starting there is translated, up to and
+ * including the jump ending it. The registers the block uses live in JVM locals, and
+ * variables and memory are accessed in place. Memory addresses are constants, so the
+ * pages a block writes are known when it is translated, and marked before it runs.
+ * Blocks stop before anything they cannot translate (the stack, graphics and invalid
+ * instructions), and the interpreter runs those. Every translated block is its own
+ * class, defined by a class loader private to the program.
+ */
+final class Jit {
+    /** How often a jump target is reached before the code there is translated. */
+    static final int THRESHOLD = 1000;
+    
+    /** Longest block translated, in instructions, so HotSpot still compiles its method. */
+    static final int MAX_BLOCK = 200;
+    
+    Jit(Program program) {
+        this.program = program;
+        blocks = new CompiledBlock[program.code.length];
+        lengths = new int[program.code.length];
+        writes = new int[program.code.length][];
+        hits = new int[program.code.length];
+    }
+    
+    /** Relation flags, passed in and out of the blocks. */
+    final int[] flags = new int[1];
+    
+    /** Number of instructions executed by the last {@link #run}. */
+    long executed;
+    
+    /**
+     * Count a jump to the code index, translating the block there once it is hot.
+     * @return true if there is a translated block to run there
+     */
+    boolean enter(int pc) {
+        if(blocks[pc] != null)
+            return true;
+        
+        if(++hits[pc] != THRESHOLD)
+            return false;
+        
+        blocks[pc] = translate(pc);
+        
+        return blocks[pc] != null;
+    }
+    
+    /**
+     * Run translated blocks from the code index on, as long as the program keeps jumping
+     * to some within the instruction budget.
+     * @return the code index the interpreter continues at
+     */
+    int run(int pc, int[] registers, int[] variables, PagedMemory memory, long budget) {
+        executed = 0;
+        
+        while(enter(pc) && executed + lengths[pc] <= budget) {
+            executed += lengths[pc];
+            
+            // blocks always run to their end
+            for(int page : writes[pc])
+                memory.dirty[page] = true;
+            
+            pc = blocks[pc].run(registers, variables, memory.bytes, flags);
+        }
+        
+        return pc;
+    }
+    
+    /** @return how many blocks were translated */
+    int getBlockCount() {
+        return loader.count;
+    }
+    
+    private final Program program;
+    private final CompiledBlock[] blocks; // translated block starting at every code index
+    private final int[] lengths; // in instructions
+    private final int[][] writes; // memory pages written
+    private final int[] hits;
+    private final BlockLoader loader = new BlockLoader();
+    
+    // locals of the generated method
+    private static final int REGISTERS = 1, VARIABLES = 2, MEMORY = 3, FLAGS = 4, FLAGS_VALUE = 5, FIRST_REGISTER = 6;
+    
+    private static final String INTERFACE = CompiledBlock.class.getName().replace('.', '/');
+    private static final String DESCRIPTOR = "([I[I[B[I)I";
+    
+    /** @return the translated block at the code index, or null if nothing there can be translated */
+    private CompiledBlock translate(int start) {
+        int[] code = program.code;
+        
+        // find the end of the block
+        int end = start, length = 0;
+        boolean jumps = false;
+        
+        while(length < MAX_BLOCK && isTranslated(code[end])) {
+            jumps = code[end] == JMP || code[end] == JIF;
+            end += SIZES[code[end]];
+            length++;
+            
+            if(jumps)
+                break;
+        }
+        
+        if(length == 0)
+            return null;
+        
+        String name = "CasmBlock" + start;
+        ClassFile file = new ClassFile(name, INTERFACE);
+        Method m = new Method(file);
+        
+        // registers used by the block get a local each
+        int[] local = new int[256];
+        ArrayList<Integer> used = new ArrayList();
+        boolean[] written = new boolean[256];
+        int locals = FIRST_REGISTER;
+        
+        for(int pc = start; pc < end; pc += SIZES[code[pc]]) {
+            for(int arg = 0; arg < SIZES[code[pc]] - 1; arg++) {
+                if(!isRegister(code[pc], arg))
+                    continue;
+                
+                int reg = code[pc + 1 + arg];
+                
+                if(local[reg] == 0) {
+                    local[reg] = locals++;
+                    used.add(reg);
+                }
+                
+                if(isWritten(code[pc], arg))
+                    written[reg] = true;
+            }
+        }
+        
+        // load the flags and the registers
+        m.load(FLAGS);
+        m.op(ICONST_0);
+        m.op(IALOAD);
+        m.store(FLAGS_VALUE);
+        
+        for(int reg : used) {
+            m.load(REGISTERS);
+            m.constant(reg);
+            m.op(IALOAD);
+            m.store(local[reg]);
+        }
+        
+        int pc = start;
+        for(int i = 0; i < length - (jumps ? 1 : 0); i++) {
+            emit(m, code, pc, local);
+            pc += SIZES[code[pc]];
+        }
+        
+        // store the registers and the flags, then go to the next block
+        for(int reg : used) {
+            if(!written[reg])
+                continue;
+            
+            m.load(REGISTERS);
+            m.constant(reg);
+            m.load(local[reg]);
+            m.op(IASTORE);
+        }
+        
+        m.load(FLAGS);
+        m.op(ICONST_0);
+        m.load(FLAGS_VALUE);
+        m.op(IASTORE);
+        
+        if(!jumps) {
+            m.constant(end);
+        } else if(code[pc] == JMP) {
+            m.constant(code[pc + 1]);
+        } else { // JIF
+            m.load(FLAGS_VALUE);
+            m.constant(code[pc + 2]);
+            m.op(IAND);
+            int notTaken = m.branch(IFEQ);
+            m.constant(code[pc + 1]);
+            m.op(IRETURN);
+            m.label(notTaken);
+            m.constant(end);
+        }
+        
+        m.op(IRETURN);
+        
+        try {
+            CompiledBlock block = (CompiledBlock) loader.define(name, file.toByteArray("run", DESCRIPTOR, m.code, 6, locals))
+                    .getDeclaredConstructor().newInstance();
+            lengths[start] = length;
+            writes[start] = writtenPages(code, start, end);
+            
+            return block;
+        } catch(ReflectiveOperationException | LinkageError ex) {
+            System.err.println("Could not translate the block at 0x"
+                    + Integer.toHexString(program.addresses[start]).toUpperCase() + ": " + ex);
+            return null;
+        }
+    }
+    
+    // memory pages written by the code between the indices
+    private static int[] writtenPages(int[] code, int start, int end) {
+        boolean[] written = new boolean[VirtualMachine.MEMORY_SIZE >> PAGE_SHIFT];
+        int count = 0;
+        
+        for(int pc = start; pc < end; pc += SIZES[code[pc]]) {
+            if((code[pc] == RTM || code[pc] == MTM) && !written[code[pc + 2] >> PAGE_SHIFT]) {
+                written[code[pc + 2] >> PAGE_SHIFT] = true;
+                count++;
+            }
+        }
+        
+        int[] pages = new int[count];
+        for(int page = 0, i = 0; page < written.length; page++) {
+            if(written[page])
+                pages[i++] = page;
+        }
+        
+        return pages;
+    }
+    
+    // emit the JVM code of one instruction
+    private static void emit(Method m, int[] code, int pc, int[] local) {
+        int a = pc + 1 < code.length ? code[pc + 1] : 0;
+        int b = pc + 2 < code.length ? code[pc + 2] : 0;
+        int c = pc + 3 < code.length ? code[pc + 3] : 0;
+        
+        switch(code[pc]) {
+            case ADD:
+                m.arithmetic(local[a], local[b], IADD, local[c]);
+                break;
+            case SUB:
+                m.arithmetic(local[a], local[b], ISUB, local[c]);
+                break;
+            case MUL:
+                m.arithmetic(local[a], local[b], IMUL, local[c]);
+                break;
+            case RGT:
+                m.shift(local[a], local[b], IUSHR, local[c]);
+                break;
+            case LFT:
+                m.shift(local[a], local[b], ISHL, local[c]);
+                break;
+            case LBL: // bound when the program was decoded
+                break;
+            case MOV:
+                m.constant(b);
+                m.store(local[a]);
+                break;
+            case RTR:
+                m.load(local[a]);
+                m.store(local[b]);
+                break;
+            case MTR:
+                m.load(MEMORY);
+                m.constant(a);
+                m.op(BALOAD);
+                m.constant(0xFF);
+                m.op(IAND);
+                m.store(local[b]);
+                break;
+            case RTM:
+                m.load(MEMORY);
+                m.constant(b);
+                m.load(local[a]);
+                m.op(I2B);
+                m.op(BASTORE);
+                break;
+            case MTM:
+                m.load(MEMORY);
+                m.constant(b);
+                m.load(MEMORY);
+                m.constant(a);
+                m.op(BALOAD);
+                m.op(BASTORE);
+                break;
+            case VTR:
+                m.load(VARIABLES);
+                m.constant(a);
+                m.op(IALOAD);
+                m.store(local[b]);
+                break;
+            case RTV:
+                m.load(VARIABLES);
+                m.constant(b);
+                m.load(local[a]);
+                m.op(IASTORE);
+                break;
+            case FTR:
+                m.load(FLAGS_VALUE);
+                m.store(local[a]);
+                break;
+            case CMP:
+                m.compare(local[a], local[b]);
+                break;
+            case AND:
+                m.load(local[a]);
+                m.load(local[b]);
+                m.op(IAND);
+                m.store(local[c]);
+                break;
+            case NOT:
+                m.load(local[a]);
+                m.constant(0xFF);
+                m.op(IXOR);
+                m.store(local[b]);
+                break;
+            case OR:
+                m.load(local[a]);
+                m.load(local[b]);
+                m.op(IOR);
+                m.store(local[c]);
+                break;
+            case XOR:
+                m.load(local[a]);
+                m.load(local[b]);
+                m.op(IXOR);
+                m.store(local[c]);
+                break;
+        }
+    }
+    
+    // the stack, graphics, halting and invalid instructions are left to the interpreter
+    private static boolean isTranslated(int op) {
+        return op != HALT && op != PSH && op < PXL;
+    }
+    
+    // which operands of the translated instructions are registers
+    private static boolean isRegister(int op, int arg) {
+        switch(op) {
+            case ADD: case SUB: case MUL: case RGT: case LFT: case AND: case OR: case XOR:
+            case RTR: case CMP: case NOT:
+                return true;
+            case MOV: case FTR: case RTM: case RTV:
+                return arg == 0;
+            case MTR: case VTR:
+                return arg == 1;
+            default:
+                return false;
+        }
+    }
+    
+    private static boolean isWritten(int op, int arg) {
+        switch(op) {
+            case ADD: case SUB: case MUL: case RGT: case LFT: case AND: case OR: case XOR:
+                return arg == 2;
+            case RTR: case NOT: case MTR: case VTR:
+                return arg == 1;
+            case MOV: case FTR:
+                return arg == 0;
+            default:
+                return false;
+        }
+    }
+    
+    /** Bytecode of the method being generated. */
+    private static class Method {
+        final ByteEmitter code = new ByteEmitter(256);
+        final ClassFile file;
+        
+        Method(ClassFile file) {
+            this.file = file;
+        }
+        
+        void op(int opcode) {
+            code.write(opcode);
+        }
+        
+        void load(int local) {
+            local(local <= FLAGS ? ALOAD : ILOAD, local);
+        }
+        
+        void store(int local) {
+            local(ISTORE, local);
+        }
+        
+        private void local(int opcode, int local) {
+            if(local > 255) {
+                code.write(WIDE);
+                code.write(opcode);
+                code.writeShort((char) local);
+            } else {
+                code.write(opcode);
+                code.write(local);
+            }
+        }
+        
+        void constant(int value) {
+            if(value >= -1 && value <= 5) {
+                code.write(ICONST_0 + value);
+            } else if(value >= -128 && value <= 127) {
+                code.write(BIPUSH);
+                code.write(value);
+            } else if(value >= -32768 && value <= 32767) {
+                code.write(SIPUSH);
+                code.writeShort((char) value);
+            } else {
+                code.write(LDC_W);
+                code.writeShort((char) file.integer(value));
+            }
+        }
+        
+        // out = (a op b) & 0xFF
+        void arithmetic(int a, int b, int op, int out) {
+            load(a);
+            load(b);
+            op(op);
+            constant(0xFF);
+            op(IAND);
+            store(out);
+        }
+        
+        // out = b < 8 ? (a op b) & 0xFF : 0
+        void shift(int a, int b, int op, int out) {
+            load(b);
+            constant(8);
+            int inRange = branch(IF_ICMPLT);
+            constant(0);
+            int done = branch(GOTO);
+            label(inRange);
+            load(a);
+            load(b);
+            op(op);
+            constant(0xFF);
+            op(IAND);
+            label(done);
+            store(out);
+        }
+        
+        // flags = a < b ? LESS : a == b ? EQUAL : GREATER, with the relations implied by each
+        void compare(int a, int b) {
+            load(a);
+            load(b);
+            int notLess = branch(IF_ICMPGE);
+            constant(8 | 16 | 32); // LESS, LESS_EQUAL, NOT_EQUAL
+            int done = branch(GOTO);
+            label(notLess);
+            load(a);
+            load(b);
+            int greater = branch(IF_ICMPNE);
+            constant(1 | 4 | 16); // EQUAL, GREATER_EQUAL, LESS_EQUAL
+            int done2 = branch(GOTO);
+            label(greater);
+            constant(2 | 4 | 32); // GREATER, GREATER_EQUAL, NOT_EQUAL
+            label(done);
+            label(done2);
+            store(FLAGS_VALUE);
+        }
+        
+        /** @return the position of the branch, to pass to {@link #label} */
+        int branch(int opcode) {
+            code.write(opcode);
+            code.writeShort((char) 0);
+            return code.size() - 3;
+        }
+        
+        /** Point a branch at the current position. */
+        void label(int branch) {
+            code.setShort(branch + 1, (char) (code.size() - branch));
+        }
+    }
+    
+    /** Defines the classes of one program, which are unloaded along with it. */
+    private static class BlockLoader extends ClassLoader {
+        int count = 0;
+        
+        BlockLoader() {
+            super(CompiledBlock.class.getClassLoader());
+        }
+        
+        Class<?> define(String name, byte[] bytes) {
+            count++;
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package chasm.vm;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Bytes that can be saved and restored cheaply, for {@link Snapshot}s.
+ * <p>
+ * The contents are a plain array, read and written in place, and split into pages of
+ * {@link #PAGE_SIZE} bytes. Whatever writes to it marks the pages it changes. Saving
+ * copies only the pages changed since the last save, and shares the rest with it. Saved
+ * pages are never written again, so any number of saves can share them.
+ */
+final class PagedMemory {
+    static final int PAGE_SHIFT = 8;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    
+    /** The contents, written in place. */
+    final byte[] bytes;
+    
+    /** Pages written since the last save or restore, to be marked by the writers. */
+    final boolean[] dirty;
+    
+    /** @param size a multiple of {@link #PAGE_SIZE} */
+    PagedMemory(int size) {
+        bytes = new byte[size];
+        dirty = new boolean[size >> PAGE_SHIFT];
+        pages = new byte[dirty.length][];
+        clear();
+    }
+    
+    /** Fill with zeros. */
+    void clear() {
+        Arrays.fill(bytes, (byte) 0);
+        Arrays.fill(dirty, false);
+        Arrays.fill(pages, ZERO_PAGE);
+    }
+    
+    /** @return the pages of the contents, to pass to {@link #restore} */
+    byte[][] save() {
+        byte[][] saved = pages.clone();
+        
+        for(int page = 0; page < dirty.length; page++) {
+            if(!dirty[page])
+                continue;
+            
+            saved[page] = Arrays.copyOfRange(bytes, page << PAGE_SHIFT, (page + 1) << PAGE_SHIFT);
+            dirty[page] = false;
+        }
+        
+        pages = saved;
+        return saved;
+    }
+    
+    /**
+     * Bring back saved contents, copying only the pages that differ from the current ones.
+     * @param restored told the number of every page copied, or null
+     */
+    void restore(byte[][] saved, IntConsumer restored) {
+        for(int page = 0; page < dirty.length; page++) {
+            if(!dirty[page] && saved[page] == pages[page])
+                continue;
+            
+            System.arraycopy(saved[page], 0, bytes, page << PAGE_SHIFT, PAGE_SIZE);
+            dirty[page] = false;
+            
+            if(restored != null)
+                restored.accept(page);
+        }
+        
+        pages = saved;
+    }
+    
+    // saved pages, matching the contents except for the dirty pages
+    private byte[][] pages;
+    
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+}
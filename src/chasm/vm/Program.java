@@ -0,0 +1,159 @@
+package chasm.vm;
+
+import chasm.ChASM;
+import chasm.compiler.Disassembler;
+import chasm.instructions.Instruction;
+import chasm.instructions.InstructionList;
+import static chasm.instructions.InstructionList.*;
+import java.util.Arrays;
+
+/**
+ * A program decoded for the {@link VirtualMachine}.
+ * <p>
+ * The bytecode is decoded once, when it is loaded, into a flat {@code int[]}: every
+ * instruction is an internal opcode followed by its operands, so the interpreter never
+ * unpacks bytes while running. The internal opcodes are numbered densely for a single
+ * table switch. Jumps hold the code index of their label, resolved from the LBL
+ * instructions. Instructions using SP+, and the few invalid ones that can only fail,
+ * are kept packed for the generic path instead.
+ */
+final class Program {
+    // internal opcodes, operands follow in the order of the instruction
+    static final int HALT = 0, ADD = 1, SUB = 2, MUL = 3, RGT = 4, LFT = 5, LBL = 6, JMP = 7,
+            JIF = 8, MOV = 9, PSH = 10, RTR = 11, MTR = 12, RTM = 13, MTM = 14, VTR = 15,
+            RTV = 16, FTR = 17, CMP = 18, AND = 19, NOT = 20, OR = 21, XOR = 22, PXL = 23,
+            LIN = 24, PRT = 25, GMT = 26,
+            GENERIC = 27; // followed by the index of the packed instruction
+    
+    /** Instructions, ended by a HALT. */
+    final int[] code;
+    
+    /** Byte address of the instruction starting at every code index, relative to the end of the header. */
+    final int[] addresses;
+    
+    /** Instructions executed by the generic path. */
+    final long[] packed;
+    
+    /**
+     * Decode bytecode, including the header.
+     * @throws VMException if the bytecode is invalid
+     */
+    static Program decode(byte[] byteCode) {
+        if(byteCode.length < Disassembler.HEADER_SIZE || byteCode[0] != (byte) 0xDA || byteCode[1] != (byte) 0xBB
+                || byteCode[2] != (byte) 0xED || byteCode[3] != (byte) 0xAF)
+            throw new VMException("Missing .casm header!", 0);
+        
+        InstructionList instructions = Disassembler.read(byteCode, Disassembler.HEADER_SIZE);
+        
+        if(instructions == null)
+            throw new VMException("Invalid bytecode!", 0);
+        
+        return new Program(instructions);
+    }
+    
+    private Program(InstructionList instructions) {
+        int size = instructions.size();
+        
+        // byte address and code index of every instruction, one past the end for the end of the code
+        int[] byteAddress = new int[size + 1];
+        int[] index = new int[size + 1];
+        
+        for(int i = 0; i < size; i++) {
+            byteAddress[i + 1] = byteAddress[i] + encodedSize(instructions.get(i));
+            index[i + 1] = index[i] + 1 + operandCount(instructions.get(i));
+        }
+        
+        // bind every label to its last definition, like running all the LBLs in order would
+        int[] labels = new int[256];
+        Arrays.fill(labels, -1);
+        
+        for(int i = 0; i < size; i++) {
+            long inst = instructions.get(i);
+            
+            if(opcode(inst) != 0x06)
+                continue;
+            
+            int at = Arrays.binarySearch(byteAddress, operand(inst, 1));
+            
+            if(at < 0)
+                throw new VMException("Label address 0x" + Integer.toHexString(operand(inst, 1)).toUpperCase()
+                        + " is not an instruction!", byteAddress[i]);
+            
+            labels[operand(inst, 0)] = index[at];
+        }
+        
+        code = new int[index[size] + 1];
+        addresses = new int[index[size] + 1];
+        
+        long[] generic = new long[size];
+        int genericCount = 0;
+        
+        for(int i = 0; i < size; i++) {
+            long inst = instructions.get(i);
+            int op = opcode(inst);
+            int pc = index[i];
+            
+            addresses[pc] = byteAddress[i];
+            
+            if(isGeneric(inst, labels)) {
+                code[pc] = GENERIC;
+                code[pc + 1] = genericCount; // every generic instruction has an operand to hold this
+                generic[genericCount++] = inst;
+                continue;
+            }
+            
+            code[pc] = OPCODES[op];
+            
+            for(int arg = 0; arg < operandCount(inst); arg++) {
+                int value = operand(inst, arg);
+                
+                if((op == 0x07 || op == 0x08) && arg == 0) // jump to the code index of the label
+                    value = labels[value];
+                else if(op == 0x08 && arg == 1) // test the relation by its flag
+                    value = 1 << value;
+                
+                code[pc + 1 + arg] = value;
+            }
+        }
+        
+        code[index[size]] = HALT;
+        addresses[index[size]] = byteAddress[size];
+        packed = Arrays.copyOf(generic, genericCount);
+    }
+    
+    /** Internal opcode of every instruction. */
+    static final int[] OPCODES = new int[256];
+    
+    /** Code size of every internal opcode, including its operands. */
+    static final int[] SIZES = new int[GENERIC];
+    
+    static {
+        int[] ids = { 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0A, 0x0B, 0x0C, 0x0D,
+                0x0E, 0x0F, 0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16, 0x50, 0x51, 0x52, 0x53 };
+        
+        for(int i = 0; i < ids.length; i++) {
+            OPCODES[ids[i]] = i;
+            SIZES[i] = 1 + ChASM.INSTRUCTIONS_MAP.get(ids[i]).nargs;
+        }
+    }
+    
+    // true for instructions using SP+, jumps to undefined labels and JIFs with unknown relations
+    private static boolean isGeneric(long inst, int[] labels) {
+        int op = opcode(inst);
+        
+        if((op == 0x07 || op == 0x08) && labels[operand(inst, 0)] == -1)
+            return true;
+        
+        if(op == 0x08 && operand(inst, 1) > 5)
+            return true;
+        
+        Instruction ref = reference(inst);
+        
+        for(int i = 0; i < ref.nargs; i++) {
+            if(ref.args[i].getPrefix() == 'r' && operand(inst, i) == SP)
+                return true;
+        }
+        
+        return false;
+    }
+}
@@ -0,0 +1,34 @@
+package chasm.vm;
+
+/**
+ * The whole state of a {@link VirtualMachine} at one point of a run, to go back to with
+ * {@link VirtualMachine#restore}. Memory and display pages are shared with the snapshots
+ * taken before, so keeping thousands of them is cheap.
+ */
+public final class Snapshot {
+    Snapshot(Program program, int[] registers, int[] variables, int[] stack, int flags, int pc, long executed,
+            byte[][] memory, byte[][] display, int frames) {
+        this.program = program;
+        this.registers = registers;
+        this.variables = variables;
+        this.stack = stack;
+        this.flags = flags;
+        this.pc = pc;
+        this.executed = executed;
+        this.memory = memory;
+        this.display = display;
+        this.frames = frames;
+    }
+    
+    /** @return the number of instructions executed before the snapshot was taken */
+    public long getInstructionCount() {
+        return executed;
+    }
+    
+    final Program program;
+    final int[] registers, variables, stack; // the stack holds just its values
+    final int flags, pc;
+    final long executed;
+    final byte[][] memory, display; // pages
+    final int frames;
+}
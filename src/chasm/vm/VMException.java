@@ -0,0 +1,22 @@
+package chasm.vm;
+
+/** Thrown by the {@link VirtualMachine} when a program does something invalid. */
+public class VMException extends RuntimeException {
+    /**
+     * @param message what went wrong
+     * @param address byte address of the instruction, relative to the end of the header
+     */
+    public VMException(String message, int address) {
+        super(message + " At 0x" + Integer.toHexString(address).toUpperCase());
+        this.address = address;
+    }
+    
+    /** @return the byte address of the failing instruction, relative to the end of the header */
+    public int getAddress() {
+        return address;
+    }
+    
+    private final int address;
+    
+    private static final long serialVersionUID = 1L;
+}
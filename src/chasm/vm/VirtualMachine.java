@@ -0,0 +1,473 @@
+package chasm.vm;
+
+import static chasm.instructions.InstructionList.*;
+import static chasm.vm.PagedMemory.PAGE_SHIFT;
+import static chasm.vm.Program.*;
+import java.util.Arrays;
+
+/**
+ * Runs .casm bytecode in process, without the target hardware.
+ * <p>
+ * Registers, variables and memory hold unsigned bytes, and all arithmetic wraps around
+ * at 8 bits. Reading register {@code SP+} pops the stack and writing it pushes. CMP sets
+ * the six relation flags, which FTR reads as a mask (EQUAL = 1 up to NOT_EQUAL = 32) and
+ * JIF tests by relation ID. Labels are bound to the byte address of their LBL, relative to
+ * the end of the header, when the program is loaded; a label defined twice keeps the last
+ * address. PXL, LIN, PRT and GMT draw into a {@link Framebuffer}. The program halts at a
+ * NOP or at the end of the code.
+ * <p>
+ * The bytecode is decoded into a {@link Program} once, and run by a single switch that
+ * keeps the program counter and flags in locals and allocates nothing per instruction.
+ * Optionally, hot code is translated to JVM classes by the {@link Jit}.
+ * <p>
+ * The whole state can be saved as a {@link Snapshot} and restored later, to step back
+ * through a run. Memory and the display are kept in {@link PagedMemory}, so a snapshot
+ * only copies the pages written since the one before.
+ */
+public class VirtualMachine {
+    public static final int STACK_SIZE = 256;
+    public static final int VARIABLES = 256;
+    public static final int MEMORY_SIZE = 0x10000;
+    
+    /**
+     * Load a program.
+     * @param byteCode contents of a .casm file, including the header
+     * @throws VMException if the bytecode is invalid
+     */
+    public VirtualMachine(byte[] byteCode) {
+        program = Program.decode(byteCode);
+        reset();
+    }
+    
+    /** Restart the program with cleared registers, memory and display. */
+    public final void reset() {
+        Arrays.fill(registers, 0);
+        Arrays.fill(variables, 0);
+        memory.clear();
+        stackSize = 0;
+        flags = 0;
+        pc = 0;
+        executed = 0;
+        runTime = 0;
+        framebuffer.clear();
+    }
+    
+    /**
+     * Save the whole state of the program: registers, flags, stack, variables, memory,
+     * display and the position in the run. Takes time and space for the memory and
+     * display pages changed since the last snapshot, and little else.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(program, registers.clone(), variables.clone(), Arrays.copyOf(stack, stackSize), flags, pc,
+                executed, memory.save(), framebuffer.save(), framebuffer.getFrameCount());
+    }
+    
+    /**
+     * Go back (or forward) to a snapshot taken from this program.
+     * @throws IllegalArgumentException if the snapshot is of another program
+     */
+    public void restore(Snapshot snapshot) {
+        if(snapshot.program != program)
+            throw new IllegalArgumentException("Snapshot of another program!");
+        
+        System.arraycopy(snapshot.registers, 0, registers, 0, registers.length);
+        System.arraycopy(snapshot.variables, 0, variables, 0, variables.length);
+        System.arraycopy(snapshot.stack, 0, stack, 0, snapshot.stack.length);
+        stackSize = snapshot.stack.length;
+        flags = snapshot.flags;
+        pc = snapshot.pc;
+        executed = snapshot.executed;
+        memory.restore(snapshot.memory, null);
+        framebuffer.restore(snapshot.display, snapshot.frames);
+    }
+    
+    /**
+     * Turn translating hot code to JVM classes on or off. It is off by default, since
+     * it only pays off for programs that run long enough to get hot.
+     * @see Jit
+     */
+    public void setJitEnabled(boolean enabled) {
+        jit = enabled ? new Jit(program) : null;
+    }
+    
+    public boolean isJitEnabled() {
+        return jit != null;
+    }
+    
+    /** @return how many blocks were translated to JVM classes so far */
+    public int getCompiledBlockCount() {
+        return jit != null ? jit.getBlockCount() : 0;
+    }
+    
+    /**
+     * Run until the program halts.
+     * @return the number of instructions executed
+     * @throws VMException if the program does something invalid
+     */
+    public long run() {
+        return run(Long.MAX_VALUE);
+    }
+    
+    /**
+     * Run until the program halts or the given number of instructions was executed.
+     * @return the number of instructions executed
+     * @throws VMException if the program does something invalid
+     */
+    public long run(long maxInstructions) {
+        // the state lives in locals while running, and is stored back at the end
+        final int[] code = program.code;
+        final int[] r = registers;
+        final int[] v = variables;
+        final byte[] m = memory.bytes;
+        final boolean[] pages = memory.dirty;
+        int pc = this.pc;
+        int flags = this.flags;
+        long count = 0;
+        long start = System.nanoTime();
+        
+        try {
+            while(count < maxInstructions) {
+                switch(code[pc]) {
+                    case HALT:
+                        return count;
+                    case ADD:
+                        r[code[pc + 3]] = (r[code[pc + 1]] + r[code[pc + 2]]) & 0xFF;
+                        pc += 4;
+                        break;
+                    case SUB:
+                        r[code[pc + 3]] = (r[code[pc + 1]] - r[code[pc + 2]]) & 0xFF;
+                        pc += 4;
+                        break;
+                    case MUL:
+                        r[code[pc + 3]] = (r[code[pc + 1]] * r[code[pc + 2]]) & 0xFF;
+                        pc += 4;
+                        break;
+                    case RGT:
+                        r[code[pc + 3]] = shift(r[code[pc + 1]], -r[code[pc + 2]]);
+                        pc += 4;
+                        break;
+                    case LFT:
+                        r[code[pc + 3]] = shift(r[code[pc + 1]], r[code[pc + 2]]) & 0xFF;
+                        pc += 4;
+                        break;
+                    case LBL: // bound when the program was decoded
+                        pc += 3;
+                        break;
+                    case JMP:
+                    case JIF:
+                        if(code[pc] == JIF && (flags & code[pc + 2]) == 0) {
+                            pc += 3;
+                            break;
+                        }
+                        
+                        pc = code[pc + 1];
+                        
+                        // loops are entered through jumps, so this is where hot code is found
+                        if(jit != null && jit.enter(pc)) {
+                            jit.flags[0] = flags;
+                            pc = jit.run(pc, r, v, memory, maxInstructions - count - 1);
+                            flags = jit.flags[0];
+                            count += jit.executed;
+                        }
+                        break;
+                    case MOV:
+                        r[code[pc + 1]] = code[pc + 2];
+                        pc += 3;
+                        break;
+                    case PSH:
+                        if(stackSize == STACK_SIZE)
+                            throw new VMException("Stack overflow!", program.addresses[pc]);
+                        
+                        stack[stackSize++] = r[code[pc + 1]];
+                        pc += 2;
+                        break;
+                    case RTR:
+                        r[code[pc + 2]] = r[code[pc + 1]];
+                        pc += 3;
+                        break;
+                    case MTR:
+                        r[code[pc + 2]] = m[code[pc + 1]] & 0xFF;
+                        pc += 3;
+                        break;
+                    case RTM:
+                        m[code[pc + 2]] = (byte) r[code[pc + 1]];
+                        pages[code[pc + 2] >> PAGE_SHIFT] = true;
+                        pc += 3;
+                        break;
+                    case MTM:
+                        m[code[pc + 2]] = m[code[pc + 1]];
+                        pages[code[pc + 2] >> PAGE_SHIFT] = true;
+                        pc += 3;
+                        break;
+                    case VTR:
+                        r[code[pc + 2]] = v[code[pc + 1]];
+                        pc += 3;
+                        break;
+                    case RTV:
+                        v[code[pc + 2]] = r[code[pc + 1]];
+                        pc += 3;
+                        break;
+                    case FTR:
+                        r[code[pc + 1]] = flags;
+                        pc += 2;
+                        break;
+                    case CMP:
+                        flags = compare(r[code[pc + 1]], r[code[pc + 2]]);
+                        pc += 3;
+                        break;
+                    case AND:
+                        r[code[pc + 3]] = r[code[pc + 1]] & r[code[pc + 2]];
+                        pc += 4;
+                        break;
+                    case NOT:
+                        r[code[pc + 2]] = ~r[code[pc + 1]] & 0xFF;
+                        pc += 3;
+                        break;
+                    case OR:
+                        r[code[pc + 3]] = r[code[pc + 1]] | r[code[pc + 2]];
+                        pc += 4;
+                        break;
+                    case XOR:
+                        r[code[pc + 3]] = r[code[pc + 1]] ^ r[code[pc + 2]];
+                        pc += 4;
+                        break;
+                    case PXL:
+                        framebuffer.pixel(r[code[pc + 1]], r[code[pc + 2]], r[code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case LIN:
+                        framebuffer.line(r[code[pc + 1]], r[code[pc + 2]], r[code[pc + 3]], r[code[pc + 4]], r[code[pc + 5]]);
+                        pc += 6;
+                        break;
+                    case PRT:
+                        framebuffer.character(r[code[pc + 1]], r[code[pc + 2]], (char) r[code[pc + 3]]);
+                        pc += 4;
+                        break;
+                    case GMT:
+                        // the frame listener may look at the VM
+                        this.pc = pc + 1;
+                        this.flags = flags;
+                        framebuffer.frame();
+                        pc += 1;
+                        break;
+                    case GENERIC:
+                        this.pc = pc;
+                        this.flags = flags;
+                        
+                        long inst = program.packed[code[pc + 1]];
+                        execute(inst);
+                        
+                        flags = this.flags;
+                        pc += 1 + operandCount(inst);
+                }
+                
+                count++;
+            }
+        } finally {
+            this.pc = pc;
+            this.flags = flags;
+            executed += count;
+            runTime += System.nanoTime() - start;
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Execute one instruction.
+     * @return false if the program has halted
+     */
+    public boolean step() {
+        return run(1) == 1;
+    }
+    
+    public boolean isHalted() {
+        return program.code[pc] == HALT;
+    }
+    
+    /** @return the value of a register, without popping SP+ */
+    public int getRegister(int reg) {
+        return registers[reg];
+    }
+    
+    public int getVariable(int var) {
+        return variables[var];
+    }
+    
+    public int getMemory(int address) {
+        return memory.bytes[address] & 0xFF;
+    }
+    
+    /** @return the relation flags set by the last CMP, as read by FTR */
+    public int getFlags() {
+        return flags;
+    }
+    
+    /** @return the values on the stack, bottom first */
+    public int[] getStack() {
+        return Arrays.copyOf(stack, stackSize);
+    }
+    
+    /** @return the byte address of the next instruction, relative to the end of the header */
+    public int getAddress() {
+        return program.addresses[pc];
+    }
+    
+    public Framebuffer getFramebuffer() {
+        return framebuffer;
+    }
+    
+    /** @return the number of instructions executed since the program was loaded or reset */
+    public long getInstructionCount() {
+        return executed;
+    }
+    
+    /** @return the average speed of the runs so far */
+    public double getInstructionsPerSecond() {
+        return runTime > 0 ? executed * 1e9 / runTime : 0;
+    }
+    
+    private final Program program;
+    private Jit jit = null;
+    private final Framebuffer framebuffer = new Framebuffer();
+    
+    private final int[] registers = new int[256];
+    private final int[] stack = new int[STACK_SIZE];
+    private final int[] variables = new int[VARIABLES];
+    private final PagedMemory memory = new PagedMemory(MEMORY_SIZE);
+    private int stackSize, flags;
+    private int pc; // code index of the next instruction
+    
+    private long executed, runTime;
+    
+    // Instructions the interpreter loop leaves to this slower path, see Program
+    private void execute(long inst) {
+        switch(OPCODES[opcode(inst)]) {
+            case ADD:
+                write(operand(inst, 2), read(operand(inst, 0)) + read(operand(inst, 1)));
+                break;
+            case SUB:
+                write(operand(inst, 2), read(operand(inst, 0)) - read(operand(inst, 1)));
+                break;
+            case MUL:
+                write(operand(inst, 2), read(operand(inst, 0)) * read(operand(inst, 1)));
+                break;
+            case RGT:
+                write(operand(inst, 2), shift(read(operand(inst, 0)), -read(operand(inst, 1))));
+                break;
+            case LFT:
+                write(operand(inst, 2), shift(read(operand(inst, 0)), read(operand(inst, 1))));
+                break;
+            case JMP:
+                throw fail("Jump to undefined label l" + operand(inst, 0) + "!");
+            case JIF:
+                if(operand(inst, 1) > 5)
+                    throw fail("Unknown relation " + operand(inst, 1) + "!");
+                
+                if((flags & (1 << operand(inst, 1))) != 0)
+                    throw fail("Jump to undefined label l" + operand(inst, 0) + "!");
+                break;
+            case MOV:
+                write(operand(inst, 0), operand(inst, 1));
+                break;
+            case PSH:
+                push(read(operand(inst, 0)));
+                break;
+            case RTR:
+                write(operand(inst, 1), read(operand(inst, 0)));
+                break;
+            case MTR:
+                write(operand(inst, 1), memory.bytes[operand(inst, 0)] & 0xFF);
+                break;
+            case RTM:
+                memory.bytes[operand(inst, 1)] = (byte) read(operand(inst, 0));
+                memory.dirty[operand(inst, 1) >> PAGE_SHIFT] = true;
+                break;
+            case MTM:
+                memory.bytes[operand(inst, 1)] = memory.bytes[operand(inst, 0)];
+                memory.dirty[operand(inst, 1) >> PAGE_SHIFT] = true;
+                break;
+            case VTR:
+                write(operand(inst, 1), variables[operand(inst, 0)]);
+                break;
+            case RTV:
+                variables[operand(inst, 1)] = read(operand(inst, 0));
+                break;
+            case FTR:
+                write(operand(inst, 0), flags);
+                break;
+            case CMP:
+                flags = compare(read(operand(inst, 0)), read(operand(inst, 1)));
+                break;
+            case AND:
+                write(operand(inst, 2), read(operand(inst, 0)) & read(operand(inst, 1)));
+                break;
+            case NOT:
+                write(operand(inst, 1), ~read(operand(inst, 0)));
+                break;
+            case OR:
+                write(operand(inst, 2), read(operand(inst, 0)) | read(operand(inst, 1)));
+                break;
+            case XOR:
+                write(operand(inst, 2), read(operand(inst, 0)) ^ read(operand(inst, 1)));
+                break;
+            case PXL:
+                framebuffer.pixel(read(operand(inst, 0)), read(operand(inst, 1)), read(operand(inst, 2)));
+                break;
+            case LIN:
+                framebuffer.line(read(operand(inst, 0)), read(operand(inst, 1)), read(operand(inst, 2)),
+                        read(operand(inst, 3)), read(operand(inst, 4)));
+                break;
+            case PRT:
+                framebuffer.character(read(operand(inst, 0)), read(operand(inst, 1)), (char) read(operand(inst, 2)));
+                break;
+            case GMT:
+                framebuffer.frame();
+                break;
+            default:
+                throw fail("Unknown instruction 0x" + Integer.toHexString(opcode(inst)).toUpperCase() + "!");
+        }
+    }
+    
+    private int read(int reg) {
+        if(reg != SP)
+            return registers[reg];
+        
+        if(stackSize == 0)
+            throw fail("Stack underflow!");
+        
+        return stack[--stackSize];
+    }
+    
+    private void write(int reg, int value) {
+        if(reg == SP)
+            push(value);
+        else
+            registers[reg] = value & 0xFF;
+    }
+    
+    private void push(int value) {
+        if(stackSize == STACK_SIZE)
+            throw fail("Stack overflow!");
+        
+        stack[stackSize++] = value & 0xFF;
+    }
+    
+    // flag of every relation that holds, by relation ID
+    private static int compare(int a, int b) {
+        return (a == b ? 1 : 0) | (a > b ? 2 : 0) | (a >= b ? 4 : 0)
+                | (a < b ? 8 : 0) | (a <= b ? 16 : 0) | (a != b ? 32 : 0);
+    }
+    
+    // shift left by a positive amount, right by a negative one
+    private static int shift(int value, int amount) {
+        if(amount >= 8 || amount <= -8)
+            return 0;
+        
+        return amount >= 0 ? value << amount : value >>> -amount;
+    }
+    
+    private VMException fail(String message) {
+        return new VMException(message, program.addresses[pc]);
+    }
+}